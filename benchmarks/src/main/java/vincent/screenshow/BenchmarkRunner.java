@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks selected on the command line (all of them by default) and writes JMH's JSON
+ * results to {@code results/screenshow-<arch>-<time>.json}, next to a {@code .env.json} file that
+ * records the machine, so runs on the Pi and on a laptop can be told apart and compared.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        File results = new File("results");
+        results.mkdirs();
+        String name = "screenshow-" + System.getProperty("os.arch") + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File resultFile = new File(results, name + ".json");
+
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile.getPath())
+                .build()).run();
+
+        Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("os.name", System.getProperty("os.name"));
+        environment.put("os.arch", System.getProperty("os.arch"));
+        environment.put("os.version", System.getProperty("os.version"));
+        environment.put("java.version", System.getProperty("java.version"));
+        environment.put("java.vm.name", System.getProperty("java.vm.name"));
+        environment.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        environment.put("maxMemory", Runtime.getRuntime().maxMemory());
+        environment.put("results", resultFile.getName());
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(results, name + ".env.json"), environment);
+        System.out.println("Results written to " + resultFile.getAbsolutePath());
+    }
+}
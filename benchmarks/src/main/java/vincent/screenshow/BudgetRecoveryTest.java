@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Incremental syncs against a {@link FakeDrive} with a download budget of two files: a file restored on
+ * Drive evicts the oldest original, and once another file is trashed the evicted one is downloaded
+ * again although the changes feed never mentions it. Exits with status 1 when a step does not hold.
+ */
+public class BudgetRecoveryTest {
+    private static final int FILE_SIZE = 4096;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        FakeDrive drive = new FakeDrive(3, FILE_SIZE, 1);
+        drive.setLatencyMillis(0);
+        drive.trash(0);
+        drive.start();
+
+        File folder = new File("target/budgetrecovery");
+        deleteRecursively(folder.toPath());
+        ScreenshowConfig config = new ScreenshowConfig();
+        config.setDownloadFolder(folder.getPath());
+        config.setGoogleFolderId(FakeDrive.FOLDER_ID);
+        config.setDriveRootUrl(drive.getRootUrl());
+        config.setIncrementalSync(true);
+        config.setDownloadBudgetBytes(2 * FILE_SIZE);
+        SharedServices shared = new SharedServices(config);
+        Show show = new Show(config, shared);
+        GoogleDriveSync sync = show.startSync(DriveClientFactory.endpoint(config.getDriveRootUrl()).create(), shared);
+        File newest = new File(folder, GoogleDriveSync.safeFileName(FakeDrive.fileName(0)));
+        File middle = new File(folder, GoogleDriveSync.safeFileName(FakeDrive.fileName(1)));
+        File oldest = new File(folder, GoogleDriveSync.safeFileName(FakeDrive.fileName(2)));
+        boolean passed;
+        try {
+            sync.requestSync().await();
+            check(!newest.exists() && middle.isFile() && oldest.isFile(), "the full sync fills the budget");
+
+            drive.restore(0);
+            sync.requestSync().await();
+            check(newest.isFile() && middle.isFile() && !oldest.exists(), "a restored file evicts the oldest");
+            check(isPending(config, "fake-2"), "the evicted file is pending");
+
+            drive.trash(1);
+            sync.requestSync().await();
+            check(newest.isFile() && !middle.exists() && oldest.isFile(), "the evicted file comes back");
+            check(!isPending(config, "fake-2"), "nothing is pending");
+            passed = true;
+        } catch (AssertionError e) {
+            System.out.println("FAILED: " + e.getMessage());
+            passed = false;
+        } finally {
+            sync.shutdown();
+            show.close();
+            shared.shutdown();
+            drive.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean isPending(ScreenshowConfig config, String fileId) {
+        return SyncState.load(new File(GoogleDriveSync.stateFolder(config), "sync.json"))
+                .getPending().contains(fileId);
+    }
+
+    private static void check(boolean condition, String step) {
+        if (!condition) {
+            throw new AssertionError(step);
+        }
+        System.out.println("ok: " + step);
+    }
+
+    private static void deleteRecursively(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rescanning the download folder into a catalog snapshot, and of looking a file up in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int fileCount;
+
+    private SyntheticFolder folder;
+    private List<String> names;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        folder = SyntheticFolder.create(fileCount, 1024);
+        names = folder.getNames();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        folder.close();
+    }
+
+    @Benchmark
+    public Catalog.Snapshot refresh() {
+        folder.getCatalog().refresh();
+        return folder.getCatalog().snapshot();
+    }
+
+    @Benchmark
+    public ScreenshowFile lookup() {
+        next = (next + 1) % names.size();
+        return folder.getCatalog().snapshot().getFile(names.get(next));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.model.FileList;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading a whole folder listing: every field in pages of 100 parsed into Drive models, the
+ * projected fields in pages of 1000 parsed into Drive models, and the projected fields streamed into
+ * {@link DriveEntry}. Run with {@code -prof gc} to see the allocation per listing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DriveListingBenchmark {
+    @Param({"10000"})
+    public int fileCount;
+
+    private List<byte[]> fullPages;
+    private List<byte[]> projectedPages;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        FakeDrive drive = new FakeDrive(fileCount, 1024, 1);
+        fullPages = pages(drive, 100, true);
+        projectedPages = pages(drive, 1000, false);
+    }
+
+    private List<byte[]> pages(FakeDrive drive, int pageSize, boolean full) throws Exception {
+        List<byte[]> pages = new ArrayList<>();
+        for (int first = 0; first < fileCount; first += pageSize) {
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            drive.writePage(page, first, pageSize, full);
+            pages.add(page.toByteArray());
+        }
+        return pages;
+    }
+
+    @Benchmark
+    public int fullFileModels() throws Exception {
+        return parseModels(fullPages);
+    }
+
+    @Benchmark
+    public int projectedFileModels() throws Exception {
+        return parseModels(projectedPages);
+    }
+
+    @Benchmark
+    public int projectedDriveEntries() throws Exception {
+        int files = 0;
+        for (byte[] page : projectedPages) {
+            files += DriveEntry.readPage(new ByteArrayInputStream(page)).getEntries().size();
+        }
+        return files;
+    }
+
+    private static int parseModels(List<byte[]> pages) throws Exception {
+        int files = 0;
+        for (byte[] page : pages) {
+            files += JacksonFactory.getDefaultInstance().createJsonParser(new ByteArrayInputStream(page))
+                    .parse(FileList.class).getFiles().size();
+        }
+        return files;
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static javax.servlet.http.HttpServletResponse.*;
+
+/**
+ * A stand-in for the parts of the Drive v3 api the sync uses, serving one folder of generated files
+ * from an ephemeral local port. Latency, bandwidth and a seeded share of failures can be injected, so
+ * the sync can be load tested against rate limits and server errors without a Google account.
+ * <p>
+ * File {@code i} is called {@code IMG <i>.jpg}, has id {@code fake-<i>} and is a minute older than
+ * file {@code i - 1}. Its content is derived from its index, so nothing is held in memory. Files can be
+ * trashed and restored, which the changes feed reports with the change index as page token.
+ */
+class FakeDrive {
+    static final String FOLDER_ID = "fake-folder";
+    private static final String PREFIX = "/drive/v3/";
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int CHUNK = 16 * 1024;
+    private static final long NEWEST = Instant.parse("2020-01-01T00:00:00Z").toEpochMilli();
+
+    private final int fileCount;
+    private final int fileSize;
+    private final String[] checksums;
+    private final Random random;
+    private final Server server = new Server();
+    private final ServerConnector connector = new ServerConnector(server);
+    private final JsonFactory json = new JsonFactory();
+    private final Map<String, Latencies> latencies = new LinkedHashMap<>();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong listBytes = new AtomicLong();
+    private final Set<Integer> trashed = ConcurrentHashMap.newKeySet();
+    private final List<Integer> changes = new ArrayList<>();
+    private long latencyMillis;
+    private long bytesPerSecond;
+    private double errorRate;
+    private double rateLimitRate;
+
+    FakeDrive(int fileCount, int fileSize, long seed) {
+        this.fileCount = fileCount;
+        this.fileSize = fileSize;
+        this.checksums = new String[fileCount];
+        this.random = new Random(seed);
+        for (String kind : new String[]{"list", "media", "changes"}) {
+            latencies.put(kind, new Latencies());
+        }
+    }
+
+    /**
+     * Extra time every request takes before it is answered.
+     */
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Bandwidth of each media response, 0 for unlimited.
+     */
+    void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Share of list and media requests answered with a 500.
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Share of list and media requests answered with a rate limit, alternating between a 429 and a 403
+     * {@code userRateLimitExceeded} as Drive does.
+     */
+    void setRateLimitRate(double rateLimitRate) {
+        this.rateLimitRate = rateLimitRate;
+    }
+
+    void start() throws Exception {
+        connector.setPort(0);
+        server.addConnector(connector);
+        ServletHandler handler = new ServletHandler();
+        handler.addServletWithMapping(new ServletHolder(new DriveServlet()), "/*");
+        server.setHandler(handler);
+        server.start();
+    }
+
+    void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * Root url to hand to {@link DriveClientFactory#endpoint(String)}.
+     */
+    String getRootUrl() {
+        return "http://localhost:" + connector.getLocalPort() + "/";
+    }
+
+    Map<String, Latencies> getLatencies() {
+        return latencies;
+    }
+
+    long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Bytes of files.list responses sent so far.
+     */
+    long getListBytes() {
+        return listBytes.get();
+    }
+
+    /**
+     * Moves a file to the trash, reported as a change.
+     */
+    void trash(int index) {
+        trashed.add(index);
+        changed(index);
+    }
+
+    /**
+     * Takes a file back out of the trash, reported as a change.
+     */
+    void restore(int index) {
+        trashed.remove(index);
+        changed(index);
+    }
+
+    private void changed(int index) {
+        synchronized (changes) {
+            changes.add(index);
+        }
+    }
+
+    static String fileName(int index) {
+        return String.format(Locale.ROOT, "IMG %06d.jpg", index);
+    }
+
+    private static byte contentAt(int index, long position) {
+        long mix = (index + 1) * 0x9E3779B97F4A7C15L;
+        return (byte) ((position * 31) ^ (position >>> 8) ^ (mix >>> ((position & 7) * 8)));
+    }
+
+    private String checksum(int index) {
+        String checksum = checksums[index];
+        if (null == checksum) {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                byte[] buffer = new byte[CHUNK];
+                for (long position = 0; position < fileSize; position += buffer.length) {
+                    int count = (int) Math.min(buffer.length, fileSize - position);
+                    fill(index, position, buffer, count);
+                    md5.update(buffer, 0, count);
+                }
+                StringBuilder hex = new StringBuilder(32);
+                for (byte b : md5.digest()) {
+                    hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                checksum = hex.toString();
+                checksums[index] = checksum;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return checksum;
+    }
+
+    private static void fill(int index, long position, byte[] buffer, int count) {
+        for (int i = 0; i < count; i++) {
+            buffer[i] = contentAt(index, position + i);
+        }
+    }
+
+    /**
+     * Writes the files.list response for {@code pageSize} files from index {@code first}. A request
+     * without a projection gets the full resource with owners, permissions, capabilities and image
+     * metadata, as Drive sends it.
+     */
+    void writePage(OutputStream stream, int first, int pageSize, boolean full) throws IOException {
+        int end = Math.min(fileCount, first + pageSize);
+        try (JsonGenerator out = json.createGenerator(stream)) {
+            out.writeStartObject();
+            if (full) {
+                out.writeStringField("kind", "drive#fileList");
+                out.writeBooleanField("incompleteSearch", false);
+            }
+            if (end < fileCount) {
+                out.writeStringField("nextPageToken", Integer.toString(end));
+            }
+            out.writeArrayFieldStart("files");
+            for (int i = first; i < end; i++) {
+                if (!trashed.contains(i)) {
+                    writeFile(out, i, full, false);
+                }
+            }
+            out.writeEndArray();
+            out.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes one file resource. {@code located} adds the {@code trashed} and {@code parents} fields a
+     * projected request asks for when it fetches a single file.
+     */
+    private void writeFile(JsonGenerator out, int index, boolean full, boolean located) throws IOException {
+        String id = "fake-" + index;
+        String modified = Instant.ofEpochMilli(NEWEST - TimeUnit.MINUTES.toMillis(index)).toString();
+        out.writeStartObject();
+        if (full) {
+            out.writeStringField("kind", "drive#file");
+        }
+        out.writeStringField("id", id);
+        out.writeStringField("name", fileName(index));
+        out.writeStringField("mimeType", "image/jpeg");
+        out.writeStringField("md5Checksum", checksum(index));
+        out.writeStringField("size", Integer.toString(fileSize));
+        out.writeStringField("modifiedTime", modified);
+        if (full) {
+            writeFullMetadata(out, index, id, modified);
+        } else if (located) {
+            out.writeBooleanField("trashed", trashed.contains(index));
+            out.writeArrayFieldStart("parents");
+            out.writeString(FOLDER_ID);
+            out.writeEndArray();
+        }
+        out.writeEndObject();
+    }
+
+    private void writeFullMetadata(JsonGenerator out, int index, String id, String modified) throws IOException {
+        out.writeBooleanField("starred", false);
+        out.writeBooleanField("trashed", false);
+        out.writeBooleanField("explicitlyTrashed", false);
+        out.writeArrayFieldStart("parents");
+        out.writeString(FOLDER_ID);
+        out.writeEndArray();
+        out.writeArrayFieldStart("spaces");
+        out.writeString("drive");
+        out.writeEndArray();
+        out.writeStringField("version", Integer.toString(3 + index % 7));
+        out.writeStringField("webContentLink", "https://drive.google.com/uc?id=" + id + "&export=download");
+        out.writeStringField("webViewLink", "https://drive.google.com/file/d/" + id + "/view?usp=drivesdk");
+        out.writeStringField("iconLink", "https://drive-thirdparty.googleusercontent.com/16/type/image/jpeg");
+        out.writeBooleanField("hasThumbnail", true);
+        out.writeStringField("thumbnailLink", "https://lh3.googleusercontent.com/" + checksum(index) + "=s220");
+        out.writeStringField("thumbnailVersion", "1");
+        out.writeBooleanField("viewedByMe", true);
+        out.writeStringField("viewedByMeTime", modified);
+        out.writeStringField("createdTime", modified);
+        out.writeStringField("modifiedByMeTime", modified);
+        out.writeBooleanField("modifiedByMe", true);
+        out.writeArrayFieldStart("owners");
+        writeUser(out);
+        out.writeEndArray();
+        out.writeFieldName("lastModifyingUser");
+        writeUser(out);
+        out.writeBooleanField("shared", false);
+        out.writeBooleanField("ownedByMe", true);
+        out.writeObjectFieldStart("capabilities");
+        for (String capability : new String[]{"canAddChildren", "canChangeCopyRequiresWriterPermission",
+                "canChangeViewersCanCopyContent", "canComment", "canCopy", "canDelete", "canDownload", "canEdit",
+                "canListChildren", "canModifyContent", "canMoveItemWithinDrive", "canReadRevisions", "canRemoveChildren",
+                "canRename", "canShare", "canTrash", "canUntrash"}) {
+            out.writeBooleanField(capability, !capability.contains("Children"));
+        }
+        out.writeEndObject();
+        out.writeBooleanField("viewersCanCopyContent", true);
+        out.writeBooleanField("copyRequiresWriterPermission", false);
+        out.writeBooleanField("writersCanShare", true);
+        out.writeArrayFieldStart("permissions");
+        out.writeStartObject();
+        out.writeStringField("kind", "drive#permission");
+        out.writeStringField("id", "07165219628837452317");
+        out.writeStringField("type", "user");
+        out.writeStringField("emailAddress", "screenshow@example.com");
+        out.writeStringField("role", "owner");
+        out.writeStringField("displayName", "Screen Show");
+        out.writeBooleanField("deleted", false);
+        out.writeEndObject();
+        out.writeEndArray();
+        out.writeArrayFieldStart("permissionIds");
+        out.writeString("07165219628837452317");
+        out.writeEndArray();
+        out.writeStringField("originalFilename", fileName(index));
+        out.writeStringField("fullFileExtension", "jpg");
+        out.writeStringField("fileExtension", "jpg");
+        out.writeStringField("headRevisionId", "0B" + checksum(index).substring(0, 24));
+        out.writeStringField("quotaBytesUsed", Integer.toString(fileSize));
+        out.writeObjectFieldStart("imageMediaMetadata");
+        out.writeNumberField("width", 4032);
+        out.writeNumberField("height", 3024);
+        out.writeNumberField("rotation", 0);
+        out.writeStringField("time", "2019:12:31 23:59:59");
+        out.writeStringField("cameraMake", "Google");
+        out.writeStringField("cameraModel", "Pixel 3");
+        out.writeNumberField("exposureTime", 0.0083);
+        out.writeNumberField("aperture", 1.8);
+        out.writeBooleanField("flashUsed", false);
+        out.writeNumberField("focalLength", 4.44);
+        out.writeNumberField("isoSpeed", 60);
+        out.writeEndObject();
+        out.writeBooleanField("isAppAuthorized", false);
+    }
+
+    private static void writeUser(JsonGenerator out) throws IOException {
+        out.writeStartObject();
+        out.writeStringField("kind", "drive#user");
+        out.writeStringField("displayName", "Screen Show");
+        out.writeStringField("photoLink", "https://lh3.googleusercontent.com/a/default-user=s64");
+        out.writeBooleanField("me", true);
+        out.writeStringField("permissionId", "07165219628837452317");
+        out.writeStringField("emailAddress", "screenshow@example.com");
+        out.writeEndObject();
+    }
+
+    private class DriveServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            String path = request.getRequestURI();
+            if (!path.startsWith(PREFIX)) {
+                response.sendError(SC_NOT_FOUND);
+                return;
+            }
+            path = path.substring(PREFIX.length());
+            String kind = path.startsWith("changes") ? "changes" : path.equals("files") ? "list" : "media";
+            long start = System.nanoTime();
+            try {
+                pause(latencyMillis);
+                if (!"changes".equals(kind) && injectError(response)) {
+                    return;
+                }
+                if ("changes/startPageToken".equals(path)) {
+                    synchronized (changes) {
+                        writeJson(response, "{\"startPageToken\":\"" + changes.size() + "\"}");
+                    }
+                } else if ("changes".equals(path)) {
+                    changes(request, response);
+                } else if ("files".equals(path)) {
+                    list(request, response);
+                } else if (path.startsWith("files/fake-") && "media".equals(request.getParameter("alt"))) {
+                    media(request, response, path.substring("files/fake-".length()));
+                } else if (path.startsWith("files/fake-")) {
+                    metadata(response, path.substring("files/fake-".length()));
+                } else {
+                    response.sendError(SC_NOT_FOUND);
+                }
+            } finally {
+                latencies.get(kind).recordSince(start);
+            }
+        }
+
+        private boolean injectError(HttpServletResponse response) throws IOException {
+            double draw;
+            synchronized (random) {
+                draw = random.nextDouble();
+            }
+            if (draw >= errorRate + rateLimitRate) {
+                return false;
+            }
+            long injected = injectedErrors.incrementAndGet();
+            if (draw < errorRate) {
+                writeError(response, SC_INTERNAL_SERVER_ERROR, "backendError", "Backend Error");
+            } else if (injected % 2 == 0) {
+                writeError(response, 429, "rateLimitExceeded", "Rate Limit Exceeded");
+            } else {
+                writeError(response, SC_FORBIDDEN, "userRateLimitExceeded", "User Rate Limit Exceeded");
+            }
+            return true;
+        }
+
+        private void list(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            int first = null == request.getParameter("pageToken") ? 0 : Integer.parseInt(request.getParameter("pageToken"));
+            int pageSize = null == request.getParameter("pageSize") ? DEFAULT_PAGE_SIZE
+                    : Math.min(MAX_PAGE_SIZE, Integer.parseInt(request.getParameter("pageSize")));
+            String fields = request.getParameter("fields");
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            writePage(page, first, pageSize, null == fields || !fields.contains("files("));
+            listBytes.addAndGet(page.size());
+            response.setStatus(SC_OK);
+            response.setContentType("application/json; charset=UTF-8");
+            response.setContentLength(page.size());
+            page.writeTo(response.getOutputStream());
+        }
+
+        private void changes(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            int first = Integer.parseInt(request.getParameter("pageToken"));
+            List<Integer> since;
+            synchronized (changes) {
+                since = new ArrayList<>(changes.subList(first, changes.size()));
+            }
+            int next = first + since.size();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (JsonGenerator out = json.createGenerator(body)) {
+                out.writeStartObject();
+                out.writeStringField("newStartPageToken", Integer.toString(next));
+                out.writeArrayFieldStart("changes");
+                for (int index : since) {
+                    out.writeStartObject();
+                    out.writeStringField("fileId", "fake-" + index);
+                    out.writeBooleanField("removed", false);
+                    out.writeFieldName("file");
+                    writeFile(out, index, false, true);
+                    out.writeEndObject();
+                }
+                out.writeEndArray();
+                out.writeEndObject();
+            }
+            response.setStatus(SC_OK);
+            response.setContentType("application/json; charset=UTF-8");
+            body.writeTo(response.getOutputStream());
+        }
+
+        private void metadata(HttpServletResponse response, String id) throws IOException {
+            int index = index(id);
+            if (index < 0) {
+                writeError(response, SC_NOT_FOUND, "notFound", "File not found: " + id);
+                return;
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (JsonGenerator out = json.createGenerator(body)) {
+                writeFile(out, index, false, true);
+            }
+            response.setStatus(SC_OK);
+            response.setContentType("application/json; charset=UTF-8");
+            body.writeTo(response.getOutputStream());
+        }
+
+        private void media(HttpServletRequest request, HttpServletResponse response, String id) throws IOException {
+            int index = index(id);
+            if (index < 0) {
+                writeError(response, SC_NOT_FOUND, "notFound", "File not found: " + id);
+                return;
+            }
+            long start = 0;
+            long end = fileSize - 1;
+            String range = request.getHeader("Range");
+            if (null != range && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", 2);
+                start = Long.parseLong(bounds[0]);
+                if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                if (start > end) {
+                    response.setHeader("Content-Range", "bytes */" + fileSize);
+                    response.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                response.setStatus(SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+            } else {
+                response.setStatus(SC_OK);
+            }
+            response.setContentType("image/jpeg");
+            response.setContentLengthLong(end - start + 1);
+            ServletOutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[CHUNK];
+            long began = System.nanoTime();
+            long sent = 0;
+            for (long position = start; position <= end; position += buffer.length) {
+                int count = (int) Math.min(buffer.length, end - position + 1);
+                fill(index, position, buffer, count);
+                out.write(buffer, 0, count);
+                sent += count;
+                bytesSent.addAndGet(count);
+                if (bytesPerSecond > 0) {
+                    long due = TimeUnit.SECONDS.toNanos(sent) / bytesPerSecond - (System.nanoTime() - began);
+                    pause(TimeUnit.NANOSECONDS.toMillis(due));
+                }
+            }
+        }
+
+        /**
+         * Index of a file by the number in its id, or -1 when there is no such file.
+         */
+        private int index(String id) {
+            try {
+                int index = Integer.parseInt(id);
+                return index < fileCount ? index : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private void writeError(HttpServletResponse response, int status, String reason, String message)
+                throws IOException {
+            response.setStatus(status);
+            writeJson(response, "{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason
+                    + "\",\"message\":\"" + message + "\"}],\"code\":" + status + ",\"message\":\"" + message + "\"}}");
+        }
+
+        private void writeJson(HttpServletResponse response, String body) throws IOException {
+            response.setContentType("application/json; charset=UTF-8");
+            response.getWriter().write(body);
+        }
+
+        private void pause(long millis) throws IOException {
+            if (millis <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+}
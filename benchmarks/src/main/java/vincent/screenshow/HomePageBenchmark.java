@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rendering the home page template for a whole catalog, and of serving the cached page
+ * through Jetty from one and from several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HomePageBenchmark {
+    @Param({"1000", "10000", "50000"})
+    public int fileCount;
+
+    private SyntheticFolder folder;
+    private InProcessServer server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        folder = SyntheticFolder.create(fileCount, 1024);
+        server = new InProcessServer(folder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        folder.close();
+    }
+
+    @Benchmark
+    public CachedPage render() throws Exception {
+        return server.getServlet().renderHomePage(folder.getCatalog().snapshot());
+    }
+
+    @Benchmark
+    public ByteBuffer cachedPage() throws Exception {
+        return server.get("/", "Accept-Encoding: gzip");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer cachedPageConcurrent() throws Exception {
+        return server.get("/", "Accept-Encoding: gzip");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer notModifiedConcurrent() throws Exception {
+        return server.get("/", "Accept-Encoding: gzip", "If-None-Match: *");
+    }
+}
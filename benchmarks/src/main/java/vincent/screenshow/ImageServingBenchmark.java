@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the image branch of {@code doGet}: full responses, conditional requests and ranges.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageServingBenchmark {
+    @Param({"65536", "2097152"})
+    public int fileSize;
+
+    private SyntheticFolder folder;
+    private InProcessServer server;
+    private String[] uris;
+    private String[] etags;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        folder = SyntheticFolder.create(100, fileSize);
+        server = new InProcessServer(folder);
+        List<String> names = folder.getNames();
+        uris = new String[names.size()];
+        etags = new String[names.size()];
+        for (int i = 0; i < uris.length; i++) {
+            ScreenshowFile file = folder.getCatalog().snapshot().getFile(names.get(i));
+            uris[i] = "/" + folder.getConfig().getDownloadFolder() + "/" + names.get(i);
+            etags[i] = "If-None-Match: \"" + file.getEtag() + "\"";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop();
+        folder.close();
+    }
+
+    @Benchmark
+    public ByteBuffer fullImage() throws Exception {
+        next = (next + 1) % uris.length;
+        return server.get(uris[next]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer fullImageConcurrent() throws Exception {
+        return server.get(uris[(int) (Thread.currentThread().getId() % uris.length)]);
+    }
+
+    @Benchmark
+    public ByteBuffer notModified() throws Exception {
+        next = (next + 1) % uris.length;
+        return server.get(uris[next], etags[next]);
+    }
+
+    @Benchmark
+    public ByteBuffer range() throws Exception {
+        next = (next + 1) % uris.length;
+        return server.get(uris[next], "Range: bytes=0-16383");
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link MainServlet} in Jetty behind a {@link LocalConnector}, so requests go through the full
+ * http stack without touching the network.
+ */
+class InProcessServer {
+    private final Server server = new Server();
+    private final LocalConnector connector = new LocalConnector(server);
+    private final MainServlet servlet;
+
+    InProcessServer(SyntheticFolder folder) throws Exception {
+        servlet = new MainServlet(folder.getConfig(), () -> null, folder.getCatalog(), folder.getRenditions(),
+                folder.getBudget(), folder.getShared());
+        server.addConnector(connector);
+        ServletHandler handler = new ServletHandler();
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        handler.addServletWithMapping(holder, "/");
+        server.setHandler(handler);
+        server.start();
+    }
+
+    MainServlet getServlet() {
+        return servlet;
+    }
+
+    /**
+     * Sends a GET with the given extra header lines and returns the raw response.
+     */
+    ByteBuffer get(String uri, String... headers) throws Exception {
+        StringBuilder request = new StringBuilder("GET ").append(uri).append(" HTTP/1.1\r\nHost: bench\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        request.append("\r\n");
+        ByteBuffer response = connector.getResponse(
+                ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1)), 10, TimeUnit.SECONDS);
+        if (null == response) {
+            throw new IllegalStateException("No response for " + uri);
+        }
+        return response;
+    }
+
+    void stop() throws Exception {
+        server.stop();
+    }
+}
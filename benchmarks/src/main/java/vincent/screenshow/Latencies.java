@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every observed latency of one kind of request, kept so exact percentiles can be reported at the end
+ * of a load test.
+ */
+class Latencies {
+    private long[] nanos = new long[1024];
+    private int count;
+
+    synchronized void record(long elapsedNanos) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = elapsedNanos;
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a value taken from {@link System#nanoTime()}.
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /**
+     * Count, rate and p50/p90/p99/max in milliseconds, for the results file.
+     */
+    synchronized Map<String, Object> summary(long durationNanos) {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("perSecond", durationNanos > 0 ? count * (double) TimeUnit.SECONDS.toNanos(1) / durationNanos : 0);
+        summary.put("p50Millis", millis(sorted, 0.50));
+        summary.put("p90Millis", millis(sorted, 0.90));
+        summary.put("p99Millis", millis(sorted, 0.99));
+        summary.put("maxMillis", millis(sorted, 1.0));
+        return summary;
+    }
+
+    private static double millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * End to end load test: a full sync of a {@link FakeDrive} folder into {@code target/loadtest} while
+ * client threads browse the show over real sockets. Options are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code files} (2000) and {@code fileSize} (65536) shape the folder,</li>
+ * <li>{@code latency} (20 ms), {@code bandwidth} (0, unlimited, bytes per second per download),
+ * {@code errors} (0.01) and {@code rateLimits} (0.005) shape the fake Drive,</li>
+ * <li>{@code clients} (4) browsing threads, which keep going for at least {@code duration} (0)
+ * seconds and until the sync is done,</li>
+ * <li>{@code virtualThreads} (false) runs the server and the sync on virtual threads.</li>
+ * </ul>
+ * Sync throughput, retries, the fake Drive's service times, the http latency percentiles per route and
+ * the peak thread count and resident memory are written to {@code results/loadtest-<arch>-<time>.json}.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        int fileCount = Integer.parseInt(options.getOrDefault("files", "2000"));
+        int fileSize = Integer.parseInt(options.getOrDefault("fileSize", "65536"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "4"));
+        long minimumNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "0")));
+        System.setProperty("java.awt.headless", "true");
+
+        FakeDrive drive = new FakeDrive(fileCount, fileSize, Long.parseLong(options.getOrDefault("seed", "1")));
+        drive.setLatencyMillis(Long.parseLong(options.getOrDefault("latency", "20")));
+        drive.setBytesPerSecond(Long.parseLong(options.getOrDefault("bandwidth", "0")));
+        drive.setErrorRate(Double.parseDouble(options.getOrDefault("errors", "0.01")));
+        drive.setRateLimitRate(Double.parseDouble(options.getOrDefault("rateLimits", "0.005")));
+        drive.start();
+
+        File folder = new File("target/loadtest");
+        deleteRecursively(folder.toPath());
+        ScreenshowConfig config = new ScreenshowConfig();
+        config.setDownloadFolder(folder.getPath());
+        config.setGoogleFolderId(FakeDrive.FOLDER_ID);
+        config.setDriveRootUrl(drive.getRootUrl());
+        config.setVirtualThreads(Boolean.parseBoolean(options.getOrDefault("virtualThreads", "false")));
+        SharedServices shared = new SharedServices(config);
+        Show show = new Show(config, shared);
+        // Scheduling is not started, the one sync is requested below.
+        GoogleDriveSync sync = show.startSync(DriveClientFactory.endpoint(config.getDriveRootUrl()).create(), shared);
+
+        boolean virtual = config.isVirtualThreads() && VirtualThreads.isAvailable();
+        Server server = virtual ? new Server(new VirtualThreadPool()) : new Server();
+        ServerConnector connector = new ServerConnector(server);
+        server.addConnector(connector);
+        ServletHandler handler = new ServletHandler();
+        ServletHolder holder = new ServletHolder(new MainServlet(config, () -> sync, show.getCatalog(),
+                show.getRenditions(), show.getBudget(), shared));
+        holder.setAsyncSupported(true);
+        handler.addServletWithMapping(holder, "/");
+        server.setHandler(handler);
+        server.start();
+        String base = "http://localhost:" + connector.getLocalPort();
+
+        Map<String, Latencies> routes = new LinkedHashMap<>();
+        for (String route : new String[]{"home", "playlist", "image"}) {
+            routes.put(route, new Latencies());
+        }
+        AtomicLong httpErrors = new AtomicLong();
+        AtomicLong peakResident = new AtomicLong();
+        shared.getTimer().scheduleAtFixedRate(
+                () -> peakResident.accumulateAndGet(SharedServices.residentBytes(), Math::max),
+                0, 100, TimeUnit.MILLISECONDS);
+        long started = System.nanoTime();
+        SyncRun run = sync.requestSync();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> browse(base, show.getCatalog(), routes, httpErrors,
+                    () -> !run.isDone() || System.nanoTime() - started < minimumNanos), "loadtest-client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        String failure = null;
+        try {
+            run.await();
+        } catch (IOException e) {
+            failure = e.getMessage();
+        }
+        long syncNanos = System.nanoTime() - started;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long totalNanos = System.nanoTime() - started;
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("options", options);
+        results.put("sync", syncSummary(run, syncNanos, failure, shared.getMetrics().write()));
+        Map<String, Object> fake = new LinkedHashMap<>();
+        fake.put("injectedErrors", drive.getInjectedErrors());
+        fake.put("bytesSent", drive.getBytesSent());
+        fake.put("listBytes", drive.getListBytes());
+        drive.getLatencies().forEach((kind, latencies) -> fake.put(kind, latencies.summary(syncNanos)));
+        results.put("drive", fake);
+        Map<String, Object> http = new LinkedHashMap<>();
+        http.put("errors", httpErrors.get());
+        routes.forEach((route, latencies) -> http.put(route, latencies.summary(totalNanos)));
+        results.put("http", http);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Map<String, Object> process = new LinkedHashMap<>();
+        process.put("virtualThreads", virtual);
+        process.put("threads", threadBean.getThreadCount());
+        process.put("peakThreads", threadBean.getPeakThreadCount());
+        process.put("peakResidentBytes", peakResident.get());
+        long collections = 0;
+        long collectionMillis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            collectionMillis += Math.max(0, collector.getCollectionTime());
+        }
+        process.put("gcCollections", collections);
+        process.put("gcMillis", collectionMillis);
+        results.put("process", process);
+        results.put("environment", environment());
+
+        server.stop();
+        sync.shutdown();
+        show.close();
+        shared.shutdown();
+        drive.stop();
+
+        File resultFolder = new File("results");
+        resultFolder.mkdirs();
+        File resultFile = new File(resultFolder, "loadtest-" + System.getProperty("os.arch") + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.writerWithDefaultPrettyPrinter().writeValue(resultFile, results);
+        System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(results));
+        System.out.println("Results written to " + resultFile.getAbsolutePath());
+    }
+
+    /**
+     * One browsing client: the home page, the playlist and images in a fixed mix of 1:1:2.
+     */
+    private static void browse(String base, Catalog catalog, Map<String, Latencies> routes, AtomicLong errors,
+                               BooleanSupplier running) {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        for (int i = 0; running.getAsBoolean(); i++) {
+            String route;
+            String path;
+            List<ScreenshowFile> files = catalog.snapshot().getFiles();
+            if (i % 4 == 0) {
+                route = "home";
+                path = "/";
+            } else if (i % 4 == 1 || files.isEmpty()) {
+                route = "playlist";
+                path = "/api/playlist";
+            } else {
+                route = "image";
+                path = files.get(ThreadLocalRandom.current().nextInt(files.size())).getDisplayUrl();
+            }
+            long start = System.nanoTime();
+            try {
+                HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(base + path)).build(),
+                        HttpResponse.BodyHandlers.discarding());
+                routes.get(route).recordSince(start);
+                if (response.statusCode() >= 400) {
+                    errors.incrementAndGet();
+                }
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static Map<String, Object> syncSummary(SyncRun run, long nanos, String failure, String metrics) {
+        double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        Map<String, Object> sync = new LinkedHashMap<>();
+        sync.put("state", run.getState());
+        sync.put("failure", failure);
+        sync.put("seconds", seconds);
+        sync.put("filesDone", run.getFilesDone());
+        sync.put("filesFailed", run.getFilesFailed());
+        sync.put("bytesDone", run.getBytesDone());
+        sync.put("filesPerSecond", run.getFilesDone() / seconds);
+        sync.put("megabytesPerSecond", run.getBytesDone() / seconds / (1024 * 1024));
+        sync.put("retries", (long) metricValue(metrics, "screenshow_drive_retries_total", ""));
+        sync.put("rateLimited", (long) metricValue(metrics, "screenshow_drive_rate_limited_total", ""));
+        String list = "call=\"list\"";
+        sync.put("listCalls", (long) metricValue(metrics, "screenshow_drive_request_duration_seconds_count", list));
+        sync.put("listSeconds", metricValue(metrics, "screenshow_drive_request_duration_seconds_sum", list));
+        return sync;
+    }
+
+    /**
+     * Sum of the series of a metric in the exposition text whose labels contain {@code label}.
+     */
+    private static double metricValue(String metrics, String name, String label) {
+        double sum = 0;
+        for (String line : metrics.split("\n")) {
+            if ((line.startsWith(name + " ") || line.startsWith(name + "{")) && line.contains(label)) {
+                sum += Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        return sum;
+    }
+
+    private static Map<String, Object> environment() {
+        Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("os.name", System.getProperty("os.name"));
+        environment.put("os.arch", System.getProperty("os.arch"));
+        environment.put("java.version", System.getProperty("java.version"));
+        environment.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        environment.put("maxMemory", Runtime.getRuntime().maxMemory());
+        return environment;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+
+    private static void deleteRecursively(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -13,29 +13,27 @@
  *    See the License for the specific language governing permissions and
  *    limitations under the License.
  */
-
 package vincent.screenshow;
 
-import org.quartz.Job;
-import org.quartz.JobExecutionContext;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.IOException;
+import org.openjdk.jmh.annotations.*;
 
-public class GoogleDriveSyncJob implements Job {
-    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+import java.util.concurrent.TimeUnit;
 
-    public GoogleDriveSyncJob() {
-    }
+/**
+ * Cost of turning a Drive file name into a local one, done for every file of every listing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SafeFileNameBenchmark {
+    @Param({"IMG_20190704_183012.jpg", "Family Picnic (2) - Grandma's garden.JPEG"})
+    public String name;
 
-    @Override
-    public void execute(JobExecutionContext context) {
-        try {
-            GoogleDriveSync sync = (GoogleDriveSync) context.getJobDetail().getJobDataMap().get("sync");
-            sync.downloadFromFolder();
-        } catch (IOException e) {
-           logger.error("Trouble downloading from google.", e);
-        }
+    @Benchmark
+    public String safeFileName() {
+        return GoogleDriveSync.safeFileName(name);
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A download folder filled with generated files and a matching manifest, as left behind by a sync.
+ * Folders are kept under {@code target/bench} and reused by later runs with the same shape.
+ */
+class SyntheticFolder {
+    private final ScreenshowConfig config;
+    private final SharedServices shared;
+    private final SyncManifest manifest;
+    private final RenditionPipeline renditions;
+    private final Catalog catalog;
+    private final DiskBudget budget;
+    private final List<String> names;
+
+    private SyntheticFolder(ScreenshowConfig config, SharedServices shared, SyncManifest manifest,
+                            RenditionPipeline renditions, Catalog catalog, List<String> names) {
+        this.config = config;
+        this.shared = shared;
+        this.manifest = manifest;
+        this.renditions = renditions;
+        this.catalog = catalog;
+        this.budget = new DiskBudget(config, manifest, shared.getMetrics());
+        this.names = names;
+    }
+
+    static SyntheticFolder create(int fileCount, int fileSize) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        String folder = "target/bench/" + fileCount + "x" + fileSize;
+        ScreenshowConfig config = new ScreenshowConfig();
+        config.setDownloadFolder(folder);
+        config.setGoogleFolderId("benchmark");
+        SyncManifest manifest = SyncManifest.load(GoogleDriveSync.stateFolder(config));
+        List<String> names = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            String name = GoogleDriveSync.safeFileName(String.format(Locale.ROOT, "IMG %06d.jpg", i));
+            names.add(name);
+            File file = new File(folder, name);
+            if (file.length() != fileSize) {
+                try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                    out.setLength(fileSize);
+                }
+            }
+            String id = "drive-" + i;
+            if (null == manifest.get(id)) {
+                manifest.put(new SyncManifest.Entry(id, String.format(Locale.ROOT, "%032x", i), (long) fileSize,
+                        file.lastModified(), name));
+            }
+        }
+        manifest.compact();
+        SharedServices shared = new SharedServices(config);
+        RenditionPipeline renditions = new RenditionPipeline(config, shared.getRenditionPool());
+        Catalog catalog = new Catalog(config, manifest, renditions, shared.getTimer());
+        return new SyntheticFolder(config, shared, manifest, renditions, catalog, names);
+    }
+
+    ScreenshowConfig getConfig() {
+        return config;
+    }
+
+    SharedServices getShared() {
+        return shared;
+    }
+
+    DiskBudget getBudget() {
+        return budget;
+    }
+
+    Catalog getCatalog() {
+        return catalog;
+    }
+
+    RenditionPipeline getRenditions() {
+        return renditions;
+    }
+
+    List<String> getNames() {
+        return names;
+    }
+
+    void close() {
+        catalog.close();
+        manifest.close();
+        shared.shutdown();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plans the syncs of one show on the shared timer. The interval starts at {@code syncMinMinutes},
+ * doubles after every sync that found nothing new, up to {@code syncMaxMinutes}, and drops back to the
+ * minimum as soon as a sync brings changes. Every delay is spread by {@code syncJitter} so screens
+ * started together do not poll Drive in lockstep.
+ * <p>
+ * The next sync is only planned once the previous one finished, manual syncs included, so there is
+ * never more than one in flight.
+ */
+class AdaptiveSyncScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+
+    private final GoogleDriveSync sync;
+    private final ScheduledExecutorService timer;
+    private final long minMillis;
+    private final long maxMillis;
+    private final double jitter;
+    private long intervalMillis;
+    private ScheduledFuture<?> next;
+    private boolean stopped;
+
+    AdaptiveSyncScheduler(ScreenshowConfig config, GoogleDriveSync sync, ScheduledExecutorService timer,
+                          Metrics metrics) {
+        this.sync = sync;
+        this.timer = timer;
+        this.minMillis = TimeUnit.MINUTES.toMillis(Math.max(1, config.getSyncMinMinutes()));
+        this.maxMillis = Math.max(minMillis, TimeUnit.MINUTES.toMillis(config.getSyncMaxMinutes()));
+        this.jitter = Math.min(1, Math.max(0, config.getSyncJitter()));
+        this.intervalMillis = minMillis;
+        metrics.gauge("screenshow_sync_interval_seconds", "Current time between scheduled syncs.",
+                () -> TimeUnit.MILLISECONDS.toSeconds(getIntervalMillis()), "show", config.getShowName());
+    }
+
+    /**
+     * Plans the first sync somewhere within the minimum interval, which also spreads a fleet of
+     * screens coming back from the same power cut.
+     */
+    synchronized void start() {
+        sync.setOnFinished(this::finished);
+        schedule(ThreadLocalRandom.current().nextLong(minMillis + 1));
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (null != next) {
+            next.cancel(false);
+        }
+    }
+
+    synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    private synchronized void finished(SyncRun run) {
+        boolean changed = SyncRun.FINISHED.equals(run.getState()) && run.isChanged();
+        intervalMillis = nextInterval(intervalMillis, changed, minMillis, maxMillis);
+        long delay = spread(intervalMillis, jitter, ThreadLocalRandom.current().nextDouble());
+        logger.info("Next sync of " + sync.getShowName() + " in " + TimeUnit.MILLISECONDS.toSeconds(delay) + "s.");
+        schedule(delay);
+    }
+
+    private void schedule(long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        if (null != next) {
+            next.cancel(false);
+        }
+        next = timer.schedule(sync::requestSync, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Back to the minimum after a sync with changes, otherwise twice as long up to the maximum. Failed
+     * syncs count as finding nothing, so an outage is not polled at full speed.
+     */
+    static long nextInterval(long intervalMillis, boolean changed, long minMillis, long maxMillis) {
+        return changed ? minMillis : Math.min(maxMillis, intervalMillis * 2);
+    }
+
+    /**
+     * Moves an interval by up to {@code jitter} of itself either way, {@code random} being uniform in
+     * [0, 1).
+     */
+    static long spread(long intervalMillis, double jitter, double random) {
+        return Math.max(1, Math.round(intervalMillis * (1 + jitter * (2 * random - 1))));
+    }
+}
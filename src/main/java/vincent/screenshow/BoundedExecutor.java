@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs at most {@code permits} tasks at a time on an executor that starts a thread per task. Waiting
+ * tasks park on the semaphore, which costs next to nothing on a virtual thread, so the limit takes the
+ * place of a pool size.
+ */
+class BoundedExecutor extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    BoundedExecutor(ExecutorService delegate, int permits) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(Math.max(1, permits), true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        delegate.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                abandon(command);
+                return;
+            }
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Ends a task interrupted while waiting for a permit, since whoever holds its future is still waiting
+     * for it. A future from {@link #submit} is cancelled; anything else, a {@code CompletableFuture}
+     * stage for instance, runs with the interrupt flag set so it fails on its own.
+     */
+    private static void abandon(Runnable command) {
+        if (command instanceof FutureTask) {
+            ((FutureTask<?>) command).cancel(false);
+        } else {
+            Thread.currentThread().interrupt();
+            command.run();
+        }
+        Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
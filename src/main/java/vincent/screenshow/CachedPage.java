@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+
+/**
+ * A rendered page kept in memory together with its gzip encoding and entity tag, tied to the catalog
+ * version and sync status version it was rendered from.
+ */
+class CachedPage {
+    private final long version;
+    private final long statusVersion;
+    private final String contentType;
+    private final byte[] plain;
+    private final byte[] gzip;
+    private final String etag;
+
+    CachedPage(long version, long statusVersion, String contentType, String content) throws IOException {
+        this.version = version;
+        this.statusVersion = statusVersion;
+        this.contentType = contentType;
+        this.plain = content.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(plain);
+        }
+        this.gzip = compressed.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(plain);
+        this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(plain.length) + "\"";
+    }
+
+    boolean isCurrent(long version, long statusVersion) {
+        return this.version == version && this.statusVersion == statusVersion;
+    }
+
+    void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader("ETag", etag);
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("Cache-Control", "no-cache");
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (null != ifNoneMatch && ifNoneMatch.contains(etag)) {
+            response.setStatus(SC_NOT_MODIFIED);
+            return;
+        }
+        response.setStatus(SC_OK);
+        response.setContentType(contentType);
+        byte[] body = plain;
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (null != acceptEncoding && acceptEncoding.contains("gzip")) {
+            response.setHeader("Content-Encoding", "gzip");
+            body = gzip;
+        }
+        response.setContentLength(body.length);
+        if (!"HEAD".equals(request.getMethod())) {
+            response.getOutputStream().write(body);
+        }
+    }
+}
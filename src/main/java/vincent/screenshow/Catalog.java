@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.Arrays.stream;
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toSet;
+import static java.util.stream.Collectors.toUnmodifiableList;
+import static java.util.stream.Collectors.toUnmodifiableMap;
+
+/**
+ * The files available for display. Readers get an immutable {@link Snapshot} without locking or
+ * touching the disk; the snapshot is rebuilt by {@link #refresh()} after a sync and by a
+ * {@link WatchService} whenever files in the download folder change.
+ */
+class Catalog {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final long WATCH_QUIET_MILLIS = 500;
+    private static final Set<String> INTERNAL_FOLDERS = Set.of("inprogress", "state", DownloadStore.BLOBS, RenditionPipeline.FOLDER);
+
+    private final ScreenshowConfig config;
+    private final SyncManifest manifest;
+    private final RenditionPipeline renditions;
+    private final File downloadFolder;
+    private final ScheduledExecutorService refresher;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+    private Thread watcher;
+
+    Catalog(ScreenshowConfig config, SyncManifest manifest, RenditionPipeline renditions,
+            ScheduledExecutorService refresher) {
+        this.config = config;
+        this.manifest = manifest;
+        this.renditions = renditions;
+        this.downloadFolder = new File(config.getDownloadFolder());
+        this.refresher = refresher;
+        refresh();
+    }
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Rescans the download folder and publishes a new snapshot. The version only moves when the set
+     * of files actually changed.
+     */
+    synchronized void refresh() {
+        List<ScreenshowFile> files = scan();
+        Snapshot current = snapshot;
+        if (!files.equals(current.getFiles())) {
+            snapshot = new Snapshot(current.getVersion() + 1, files);
+            logger.info("Catalog version " + snapshot.getVersion() + " has " + files.size() + " files.");
+        }
+    }
+
+    /**
+     * Schedules a refresh shortly, collapsing bursts of invalidations into one rebuild.
+     */
+    void invalidate() {
+        if (refreshPending.compareAndSet(false, true)) {
+            refresher.schedule(() -> {
+                refreshPending.set(false);
+                refresh();
+            }, WATCH_QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private List<ScreenshowFile> scan() {
+        File[] files = downloadFolder.listFiles();
+        if (null == files) {
+            return Collections.emptyList();
+        }
+        List<ScreenshowFile> scanned = stream(files)
+                .filter(File::isFile)
+                .filter(file -> !file.getName().endsWith(".heic"))
+                .map(this::toScreenshowFile)
+                .collect(toCollection(ArrayList::new));
+        Set<String> onDisk = scanned.stream().map(ScreenshowFile::getFileName).collect(toSet());
+        for (SyncManifest.Entry entry : manifest.evictedEntries()) {
+            // The file is briefly on disk while it is being evicted or placed again, list it once.
+            if (renditions.isRendered(entry.getMd5Checksum()) && !onDisk.contains(entry.getLocalPath())) {
+                scanned.add(toEvictedFile(entry));
+            }
+        }
+        scanned.sort(comparing(ScreenshowFile::getFileName));
+        return Collections.unmodifiableList(scanned);
+    }
+
+    /**
+     * An original evicted to stay within the download budget is shown by its screen sized rendition.
+     */
+    private ScreenshowFile toEvictedFile(SyncManifest.Entry entry) {
+        String checksum = entry.getMd5Checksum();
+        String displayUrl = renditionUrl(RenditionPipeline.DISPLAY, checksum);
+        return new ScreenshowFile(
+                displayUrl,
+                renditionUrl(RenditionPipeline.THUMB, checksum),
+                displayUrl,
+                entry.getModifiedTime(),
+                renditions.file(RenditionPipeline.DISPLAY, checksum).length(),
+                entry.getLocalPath(),
+                checksum,
+                "image/jpeg");
+    }
+
+    private ScreenshowFile toScreenshowFile(File file) {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        SyncManifest.Entry entry = manifest.findByLocalPath(file.getName());
+        String etag = null != entry && null != entry.getMd5Checksum()
+                ? entry.getMd5Checksum()
+                : Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+        String contentType = MimeTypes.getDefaultMimeByExtension(file.getName());
+        String imageUrl = config.getBasePath() + "/" + config.getDownloadFolder() + "/" + file.getName() + "?v=" + etag;
+        boolean rendered = null != entry && renditions.isRendered(entry.getMd5Checksum());
+        return new ScreenshowFile(
+                imageUrl,
+                rendered ? renditionUrl(RenditionPipeline.THUMB, entry.getMd5Checksum()) : imageUrl,
+                rendered ? renditionUrl(RenditionPipeline.DISPLAY, entry.getMd5Checksum()) : imageUrl,
+                lastModified,
+                length,
+                file.getName(),
+                etag,
+                null == contentType ? "application/octet-stream" : contentType);
+    }
+
+    private String renditionUrl(String kind, String checksum) {
+        return config.getBasePath() + "/" + config.getDownloadFolder() + "/" + RenditionPipeline.FOLDER + "/" + kind + "/" + checksum + ".jpg";
+    }
+
+    void startWatching() throws IOException {
+        Files.createDirectories(downloadFolder.toPath());
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        downloadFolder.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        watcher = new Thread(() -> watch(watchService), "screenshow-catalog-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch(WatchService watchService) {
+        try (watchService) {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean changed = drain(key);
+                // Wait for a quiet period so a burst of events causes a single rebuild.
+                while (null != (key = watchService.poll(WATCH_QUIET_MILLIS, TimeUnit.MILLISECONDS))) {
+                    changed |= drain(key);
+                }
+                if (changed) {
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        logger.error("Trouble refreshing the catalog, keeping the previous one.", e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warn("Trouble closing catalog watch service.", e);
+        }
+    }
+
+    private static boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            changed |= event.kind() == OVERFLOW
+                    || !(context instanceof Path && INTERNAL_FOLDERS.contains(context.toString()));
+        }
+        key.reset();
+        return changed;
+    }
+
+    void close() {
+        if (null != watcher) {
+            watcher.interrupt();
+        }
+    }
+
+    static class Snapshot {
+        private final long version;
+        private final List<ScreenshowFile> files;
+        private final Map<String, ScreenshowFile> filesByName;
+
+        Snapshot(long version, List<ScreenshowFile> files) {
+            this.version = version;
+            this.files = files;
+            this.filesByName = files.stream().collect(toUnmodifiableMap(ScreenshowFile::getFileName, file -> file));
+        }
+
+        long getVersion() {
+            return version;
+        }
+
+        List<ScreenshowFile> getFiles() {
+            return files;
+        }
+
+        ScreenshowFile getFile(String fileName) {
+            return filesByName.get(fileName);
+        }
+    }
+}
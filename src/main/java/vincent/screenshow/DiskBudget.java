@@ -0,0 +1,259 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps the originals in a download folder within {@code downloadBudgetBytes}. The sync reserves room
+ * for every download before queuing it; when the folder is full the originals with the lowest
+ * priority are handed back for eviction, and a file that would only fit by evicting something more
+ * important is skipped. Everything is decided from the manifest in memory, the folder is never
+ * rescanned.
+ * <p>
+ * The priority of a file is its Drive modified time, or with {@code displayed} the later of that and
+ * the last time it was on screen. Display times are kept in {@code state/displayed.json}.
+ */
+class DiskBudget {
+    static final String NEWEST = "newest";
+    static final String DISPLAYED = "displayed";
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final SyncManifest manifest;
+    private final long maxBytes;
+    private final boolean byDisplay;
+    private final File displayedFile;
+    private final Map<String, Long> displayed = new ConcurrentHashMap<>();
+    private final Metrics.Counter evictedFiles;
+    private final Metrics.Counter skippedFiles;
+    private volatile boolean displayedChanged;
+    private long reservedBytes;
+    private List<Group> victims;
+    private int nextVictim;
+
+    DiskBudget(ScreenshowConfig config, SyncManifest manifest, Metrics metrics) {
+        this.manifest = manifest;
+        this.maxBytes = Math.max(0, config.getDownloadBudgetBytes());
+        this.byDisplay = DISPLAYED.equals(config.getBudgetPriority());
+        this.displayedFile = new File(GoogleDriveSync.stateFolder(config), "displayed.json");
+        if (byDisplay && displayedFile.isFile()) {
+            try {
+                displayed.putAll(MAPPER.readValue(displayedFile, new TypeReference<Map<String, Long>>() {
+                }));
+            } catch (IOException e) {
+                logger.warn("Unable to read display times " + displayedFile.getAbsolutePath() + ".", e);
+            }
+        }
+        String show = config.getShowName();
+        this.evictedFiles = metrics.counter("screenshow_budget_evicted_files_total",
+                "Originals deleted to stay within the download budget.", "show", show);
+        this.skippedFiles = metrics.counter("screenshow_budget_skipped_files_total",
+                "Downloads skipped because they did not fit the download budget.", "show", show);
+        metrics.gauge("screenshow_budget_used_bytes", "Bytes of originals in the download folder.",
+                manifest::storedBytes, "show", show);
+        metrics.gauge("screenshow_budget_limit_bytes", "Download budget, 0 for none.", () -> maxBytes, "show", show);
+    }
+
+    boolean isLimited() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Records that a file was on screen, by local file name for originals and by checksum for renditions.
+     */
+    void displayed(String key) {
+        if (byDisplay) {
+            displayed.put(key, System.currentTimeMillis());
+            displayedChanged = true;
+        }
+    }
+
+    long priority(String md5Checksum, String localPath, long modifiedTime) {
+        if (!byDisplay) {
+            return modifiedTime;
+        }
+        long shown = displayed.getOrDefault(localPath, 0L);
+        if (null != md5Checksum) {
+            shown = Math.max(shown, displayed.getOrDefault(md5Checksum, 0L));
+        }
+        return Math.max(modifiedTime, shown);
+    }
+
+    private long priority(SyncManifest.Entry entry) {
+        return priority(entry.getMd5Checksum(), entry.getLocalPath(), entry.getModifiedTime());
+    }
+
+    /**
+     * Starts a sync: priorities are taken from the manifest as it is now, and whatever exceeds the
+     * budget already, for example after it was lowered, is returned for eviction.
+     */
+    synchronized List<SyncManifest.Entry> beginSync() {
+        victims = null;
+        nextVictim = 0;
+        reservedBytes = 0;
+        if (!isLimited()) {
+            return Collections.emptyList();
+        }
+        return take(manifest.storedBytes() - maxBytes, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reserves room for a download of the given size. Returns the entries to evict first, possibly none,
+     * or null when the file does not fit without evicting something of the same or a higher priority.
+     */
+    synchronized List<SyncManifest.Entry> reserve(long size, long priority) {
+        if (!isLimited() || size <= 0) {
+            return Collections.emptyList();
+        }
+        List<SyncManifest.Entry> evict = size > maxBytes
+                ? null
+                : take(manifest.storedBytes() + reservedBytes + size - maxBytes, priority);
+        if (null == evict) {
+            skippedFiles.increment();
+            return null;
+        }
+        reservedBytes += size;
+        return evict;
+    }
+
+    /**
+     * Gives back a reservation once the download was recorded in the manifest or failed.
+     */
+    synchronized void release(long size) {
+        if (isLimited() && size > 0) {
+            reservedBytes = Math.max(0, reservedBytes - size);
+        }
+    }
+
+    /**
+     * Picks the lowest priority originals that free at least {@code needed} bytes, all of them below
+     * {@code priority}, or returns null when that is not possible.
+     */
+    private List<SyncManifest.Entry> take(long needed, long priority) {
+        if (needed <= 0) {
+            return Collections.emptyList();
+        }
+        if (null == victims) {
+            victims = rankVictims();
+        }
+        List<SyncManifest.Entry> evict = new ArrayList<>();
+        long freed = 0;
+        int index = nextVictim;
+        for (; freed < needed && index < victims.size() && victims.get(index).priority < priority; index++) {
+            Group group = victims.get(index);
+            if (group.isStored(manifest)) {
+                evict.addAll(group.entries);
+                freed += group.size;
+            }
+        }
+        if (freed < needed) {
+            return null;
+        }
+        nextVictim = index;
+        evictedFiles.add(evict.size());
+        return evict;
+    }
+
+    /**
+     * Originals on disk grouped by content, lowest priority first. Files sharing a blob are evicted
+     * together since only that frees the space.
+     */
+    private List<Group> rankVictims() {
+        Map<String, Group> groups = new HashMap<>();
+        for (SyncManifest.Entry entry : manifest.entries()) {
+            if (entry.isEvicted() || entry.sizeOrZero() == 0) {
+                continue;
+            }
+            String key = null == entry.getMd5Checksum() ? "id:" + entry.getId() : entry.getMd5Checksum();
+            Group group = groups.computeIfAbsent(key, ignored -> new Group(entry.sizeOrZero()));
+            group.entries.add(entry);
+            group.priority = Math.max(group.priority, priority(entry));
+        }
+        List<Group> ranked = new ArrayList<>(groups.values());
+        ranked.sort(Comparator.comparingLong(group -> group.priority));
+        return ranked;
+    }
+
+    /**
+     * Writes the display times of files still in the manifest, when any changed.
+     */
+    void save() {
+        if (!displayedChanged) {
+            return;
+        }
+        displayedChanged = false;
+        Set<String> known = new HashSet<>();
+        for (SyncManifest.Entry entry : manifest.entries()) {
+            known.add(entry.getLocalPath());
+            if (null != entry.getMd5Checksum()) {
+                known.add(entry.getMd5Checksum());
+            }
+        }
+        displayed.keySet().retainAll(known);
+        try {
+            Path target = displayedFile.toPath();
+            Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            MAPPER.writeValue(temp.toFile(), new TreeMap<>(displayed));
+            Files.move(temp, target, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to save display times " + displayedFile.getAbsolutePath() + ".", e);
+        }
+    }
+
+    private static class Group {
+        private final long size;
+        private final List<SyncManifest.Entry> entries = new ArrayList<>(1);
+        private long priority = Long.MIN_VALUE;
+
+        Group(long size) {
+            this.size = size;
+        }
+
+        /**
+         * False once any of the entries changed since the ranking, those are left alone.
+         */
+        boolean isStored(SyncManifest manifest) {
+            for (SyncManifest.Entry entry : entries) {
+                if (manifest.get(entry.getId()) != entry) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Owns the {@code inprogress} and {@code blobs} folders. Partial downloads are named
+ * {@code <drive id>.<version>.part} where the version is the Drive md5 checksum (or modified time), so
+ * an interrupted download can be resumed by the next attempt and a partial of an older version is
+ * recognised as superseded.
+ * <p>
+ * Finished content is stored once per checksum as {@code blobs/<md5>} and every visible file name is a
+ * hard link to its blob, so the same photo uploaded under several names takes the space of one.
+ */
+class DownloadStore {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final String PART = ".part";
+    static final String BLOBS = "blobs";
+
+    private final File downloadFolder;
+    private final File inProgressFolder;
+    private final File blobFolder;
+    private final boolean blobFolderCreated;
+    private volatile boolean linkFallbackLogged;
+
+    DownloadStore(ScreenshowConfig config) {
+        this.downloadFolder = new File(config.getDownloadFolder());
+        this.inProgressFolder = new File(downloadFolder, "inprogress");
+        this.inProgressFolder.mkdirs();
+        this.blobFolder = new File(downloadFolder, BLOBS);
+        this.blobFolderCreated = this.blobFolder.mkdirs();
+    }
+
+    File blob(String checksum) {
+        return new File(blobFolder, checksum);
+    }
+
+    /**
+     * Points a visible file name at a blob. The link is created next to the partials and moved over the
+     * target, so readers see either the old or the new content. Where the file system has no hard links
+     * the blob is copied instead.
+     */
+    void link(String checksum, File target) throws IOException {
+        Path temp = new File(inProgressFolder, target.getName() + ".link").toPath();
+        Files.deleteIfExists(temp);
+        try {
+            Files.createLink(temp, blob(checksum).toPath());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (!linkFallbackLogged) {
+                linkFallbackLogged = true;
+                logger.warn("Hard links are not available in " + downloadFolder.getAbsolutePath()
+                        + ", duplicate files will be copied.", e);
+            }
+            Files.copy(blob(checksum).toPath(), temp);
+        }
+        Files.move(temp, target.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * Registers an existing visible file as the blob for its checksum.
+     */
+    void adopt(File existing, String checksum) throws IOException {
+        Path blob = blob(checksum).toPath();
+        if (Files.exists(blob)) {
+            return;
+        }
+        try {
+            Files.createLink(blob, existing.toPath());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(existing.toPath(), blob);
+        }
+    }
+
+    /**
+     * Files synced before blobs existed get their blob once, when the blob folder is first created.
+     */
+    void migrate(SyncManifest manifest) {
+        if (!blobFolderCreated) {
+            return;
+        }
+        for (SyncManifest.Entry entry : manifest.entries()) {
+            File visible = new File(downloadFolder, entry.getLocalPath());
+            if (null != entry.getMd5Checksum() && visible.isFile()) {
+                try {
+                    adopt(visible, entry.getMd5Checksum());
+                } catch (IOException e) {
+                    logger.warn("Unable to move " + visible.getAbsolutePath() + " into the blob store.", e);
+                }
+            }
+        }
+    }
+
+    void release(String checksum) {
+        File blob = blob(checksum);
+        if (blob.delete()) {
+            logger.info("Deleting unreferenced blob: {}", blob.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the partial file for a version of a Drive file, deleting partials of other versions.
+     */
+    File partialFile(String fileId, String version) {
+        File partial = new File(inProgressFolder, fileId + "." + version + PART);
+        File[] others = inProgressFolder.listFiles((dir, name) -> name.startsWith(fileId + ".")
+                && name.endsWith(PART) && !name.equals(partial.getName()));
+        if (null != others) {
+            for (File other : others) {
+                if (other.delete()) {
+                    logger.info("Deleting superseded partial download: {}", other.getAbsolutePath());
+                }
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * Deletes partials older than {@code maxAgeHours}, partials of files the manifest already has in
+     * that version, and temp files left by older versions of the sync.
+     */
+    void collectGarbage(SyncManifest manifest, long maxAgeHours) {
+        File[] files = inProgressFolder.listFiles();
+        if (null == files) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(maxAgeHours);
+        for (File file : files) {
+            String name = file.getName();
+            boolean stale = !name.endsWith(PART) || file.lastModified() < cutoff;
+            if (!stale) {
+                String[] parts = name.substring(0, name.length() - PART.length()).split("\\.", 2);
+                SyncManifest.Entry entry = manifest.get(parts[0]);
+                stale = parts.length != 2 || (null != entry && parts[1].equals(entry.getMd5Checksum()));
+            }
+            if (stale && file.delete()) {
+                logger.info("Deleting stale partial download: {}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Makes a finished download visible: the partial is flushed to disk, atomically moved over the
+     * target and the folder entry is flushed as well, so a power cut leaves either the old or the new
+     * file but never a truncated one.
+     */
+    void commit(File partial, File target) throws IOException {
+        try (FileChannel channel = FileChannel.open(partial.toPath(), READ)) {
+            channel.force(true);
+        }
+        Files.move(partial.toPath(), target.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        syncFolder(target.toPath().getParent());
+    }
+
+    private static void syncFolder(Path folder) {
+        try (FileChannel channel = FileChannel.open(folder, READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform allows opening a directory, the move itself is still atomic.
+            logger.debug("Unable to sync folder " + folder, e);
+        }
+    }
+
+    static String md5(File file) throws IOException {
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), MessageDigest.getInstance("MD5"))) {
+            byte[] buffer = new byte[64 * 1024];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) >= 0) {
+            }
+            byte[] digest = ((DigestInputStream) in).getMessageDigest().digest();
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+
+/**
+ * Creates the Drive API client the syncs share. {@link GoogleDriveClientFactory} authorizes against
+ * Google; {@link #endpoint(String)} talks to any server speaking the Drive v3 protocol without
+ * credentials, such as the fake Drive used by the load tests.
+ */
+interface DriveClientFactory {
+
+    Drive create() throws Exception;
+
+    /**
+     * A client for the Drive v3 api at {@code rootUrl}, e.g. {@code http://localhost:9000/}.
+     */
+    static DriveClientFactory endpoint(String rootUrl) {
+        return () -> new Drive.Builder(new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+                .setRootUrl(rootUrl.endsWith("/") ? rootUrl : rootUrl + "/")
+                .setApplicationName(GoogleDriveClientFactory.APPLICATION_NAME)
+                .build();
+    }
+}
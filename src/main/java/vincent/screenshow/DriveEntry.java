@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Drive metadata a sync needs about one file. Folder listings are read from the response stream
+ * straight into these, so a page of a big folder does not build full Drive {@link File} models.
+ */
+class DriveEntry {
+    /**
+     * The projection requested for every file, see {@link #readPage(InputStream)}.
+     */
+    static final String FIELDS = "id,name,mimeType,md5Checksum,size,modifiedTime";
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final String id;
+    private final String name;
+    private final String mimeType;
+    private final String md5Checksum;
+    private final Long size;
+    private final long modifiedTime;
+
+    DriveEntry(String id, String name, String mimeType, String md5Checksum, Long size, long modifiedTime) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+        this.md5Checksum = md5Checksum;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+    }
+
+    /**
+     * Copies the fields of a file the Drive client already parsed, as delivered by the changes feed.
+     */
+    static DriveEntry of(File file) {
+        return new DriveEntry(file.getId(), file.getName(), file.getMimeType(), file.getMd5Checksum(), file.getSize(),
+                null == file.getModifiedTime() ? 0L : file.getModifiedTime().getValue());
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Null for files without content on Drive, such as Google Docs.
+     */
+    String getMd5Checksum() {
+        return md5Checksum;
+    }
+
+    Long getSize() {
+        return size;
+    }
+
+    /**
+     * Milliseconds since the epoch, 0 when Drive did not say.
+     */
+    long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    /**
+     * Reads one page of a {@code files.list} response. Fields other than {@code nextPageToken} and
+     * the ones in {@link #FIELDS} are skipped without being materialised.
+     */
+    static Page readPage(InputStream in) throws IOException {
+        List<DriveEntry> entries = new ArrayList<>();
+        String nextPageToken = null;
+        try (JsonParser parser = JSON.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a file list from google drive.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("nextPageToken".equals(field)) {
+                    nextPageToken = parser.getValueAsString();
+                } else if ("files".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        entries.add(readEntry(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new Page(entries, nextPageToken);
+    }
+
+    private static DriveEntry readEntry(JsonParser parser) throws IOException {
+        String id = null;
+        String name = null;
+        String mimeType = null;
+        String md5Checksum = null;
+        Long size = null;
+        long modifiedTime = 0L;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    id = parser.getValueAsString();
+                    break;
+                case "name":
+                    name = parser.getValueAsString();
+                    break;
+                case "mimeType":
+                    mimeType = parser.getValueAsString();
+                    break;
+                case "md5Checksum":
+                    md5Checksum = parser.getValueAsString();
+                    break;
+                case "size":
+                    // Drive sends int64 values as strings.
+                    size = Long.valueOf(parser.getValueAsString());
+                    break;
+                case "modifiedTime":
+                    modifiedTime = parseTime(parser.getValueAsString());
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return new DriveEntry(id, name, mimeType, md5Checksum, size, modifiedTime);
+    }
+
+    /**
+     * Milliseconds for an RFC 3339 time. Drive answers in UTC, {@code 2020-01-31T12:34:56.789Z}, which
+     * is read directly; parsing it in general takes a regex and a calendar per file, the bulk of the
+     * garbage made by a listing.
+     */
+    static long parseTime(String text) {
+        int length = text.length();
+        if ((length == 20 || length == 24) && text.charAt(length - 1) == 'Z' && text.charAt(4) == '-'
+                && text.charAt(7) == '-' && text.charAt(10) == 'T' && text.charAt(13) == ':'
+                && text.charAt(16) == ':' && (length == 20 || text.charAt(19) == '.')) {
+            int year = digits(text, 0, 4);
+            int month = digits(text, 5, 2);
+            int day = digits(text, 8, 2);
+            int hour = digits(text, 11, 2);
+            int minute = digits(text, 14, 2);
+            int second = digits(text, 17, 2);
+            int millis = length == 24 ? digits(text, 20, 3) : 0;
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour >= 0 && hour < 24
+                    && minute >= 0 && minute < 60 && second >= 0 && second < 60 && millis >= 0) {
+                try {
+                    long days = LocalDate.of(year, month, day).toEpochDay();
+                    return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+                } catch (DateTimeException e) {
+                    // Not a real date, let the general parser report it.
+                }
+            }
+        }
+        return DateTime.parseRfc3339(text).getValue();
+    }
+
+    /**
+     * The decimal number in {@code count} characters from {@code start}, or -1 if any is not a digit.
+     */
+    private static int digits(String text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    static class Page {
+        private final List<DriveEntry> entries;
+        private final String nextPageToken;
+
+        Page(List<DriveEntry> entries, String nextPageToken) {
+            this.entries = entries;
+            this.nextPageToken = nextPageToken;
+        }
+
+        List<DriveEntry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * Null on the last page.
+         */
+        String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.google.api.client.http.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries Drive calls with jittered exponential backoff. A rate limit answer (429, or 403 with a rate
+ * limit reason) closes a gate shared by every thread, so the whole sync slows down together instead
+ * of each download hammering the quota on its own schedule.
+ */
+class DriveRetry {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(64);
+
+    interface DriveCall<T> {
+        T call() throws IOException;
+    }
+
+    private final int maxAttempts;
+    private final Metrics.Counter retries;
+    private final Metrics.Counter rateLimited;
+    private long gateDelayMillis = BASE_DELAY_MILLIS;
+    private long closedUntil;
+
+    DriveRetry(int maxAttempts, Metrics metrics) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retries = metrics.counter("screenshow_drive_retries_total", "Drive calls that were retried.");
+        this.rateLimited = metrics.counter("screenshow_drive_rate_limited_total", "Drive calls answered with a rate limit.");
+    }
+
+    /**
+     * Runs a call, retrying errors that may go away by themselves. Errors that will not, like a
+     * missing file, are thrown right away.
+     */
+    <T> T call(String description, DriveCall<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            awaitGate();
+            try {
+                T result = call.call();
+                opened();
+                return result;
+            } catch (IOException e) {
+                if (e instanceof InterruptedIOException || attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                long delay = backoff(attempt);
+                if (isRateLimited(e)) {
+                    rateLimited.increment();
+                    closeGate();
+                }
+                retries.increment();
+                logger.warn(description + " failed (" + e.getMessage() + "), attempt " + attempt + " of "
+                        + maxAttempts + ", retrying in " + delay + "ms.");
+                sleep(delay);
+            }
+        }
+    }
+
+    static boolean isRateLimited(IOException e) {
+        if (!(e instanceof HttpResponseException)) {
+            return false;
+        }
+        HttpResponseException response = (HttpResponseException) e;
+        if (response.getStatusCode() == 429) {
+            return true;
+        }
+        String content = response.getContent();
+        return response.getStatusCode() == 403 && null != content && content.contains("ateLimitExceeded");
+    }
+
+    private static boolean isRetryable(IOException e) {
+        if (!(e instanceof HttpResponseException)) {
+            // Network trouble, or a checksum mismatch that threw the partial away.
+            return true;
+        }
+        int status = ((HttpResponseException) e).getStatusCode();
+        return status >= 500 || status == 408 || isRateLimited(e);
+    }
+
+    /**
+     * Full jitter on top of an exponential delay: somewhere between half and all of it.
+     */
+    private static long backoff(int attempt) {
+        long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private synchronized void closeGate() {
+        closedUntil = Math.max(closedUntil, System.currentTimeMillis() + gateDelayMillis);
+        logger.warn("Google drive rate limit hit, pausing all drive calls for " + gateDelayMillis + "ms.");
+        gateDelayMillis = Math.min(MAX_DELAY_MILLIS, gateDelayMillis * 2);
+    }
+
+    private synchronized void opened() {
+        gateDelayMillis = BASE_DELAY_MILLIS;
+    }
+
+    private void awaitGate() throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            wait = closedUntil - System.currentTimeMillis();
+        }
+        if (wait > 0) {
+            sleep(wait);
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off from google drive.");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.google.api.services.drive.Drive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Connects to Google Drive in the background so the slideshow can be served from disk while the
+ * network and the OAuth flow come up. Authorization is retried with a growing delay until it works,
+ * then one sync per show is started on the shared Drive client.
+ */
+class DriveStartup {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final long FIRST_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Callable<Drive> connect;
+    private final Function<Drive, List<GoogleDriveSync>> startSyncs;
+    private final Thread thread;
+    private volatile Map<String, GoogleDriveSync> syncs = Collections.emptyMap();
+
+    DriveStartup(Callable<Drive> connect, Function<Drive, List<GoogleDriveSync>> startSyncs) {
+        this.connect = connect;
+        this.startSyncs = startSyncs;
+        this.thread = new Thread(this::run, "screenshow-drive-startup");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * The running sync of a show, or null while Drive is not connected yet.
+     */
+    GoogleDriveSync getSync(String showName) {
+        return syncs.get(showName);
+    }
+
+    private void run() {
+        Drive drive = null;
+        long retryMillis = FIRST_RETRY_MILLIS;
+        while (null == drive) {
+            try {
+                drive = connect.call();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.warn("Unable to connect to google drive, retrying in " + retryMillis / 1000 + "s.", e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+            }
+        }
+        try {
+            Map<String, GoogleDriveSync> started = new HashMap<>();
+            for (GoogleDriveSync sync : startSyncs.apply(drive)) {
+                started.put(sync.getShowName(), sync);
+            }
+            syncs = started;
+            logger.info("Connected to google drive, syncing " + started.size() + " show(s).");
+        } catch (RuntimeException e) {
+            logger.error("Unable to start google drive sync.", e);
+        }
+    }
+
+    void shutdown() {
+        thread.interrupt();
+        for (GoogleDriveSync sync : syncs.values()) {
+            sync.shutdown();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+
+/**
+ * Lists the catalog as JSON a page at a time. Files are ordered by name and the cursor is the name of
+ * the last file of the previous page, so pages stay stable while the catalog changes underneath.
+ * <p>
+ * Parameters: {@code cursor}, {@code limit} (default 100, at most 1000), {@code since} to only return
+ * files modified after the given epoch milliseconds, and {@code fields} as a comma separated subset of
+ * the file properties. The response is written straight to the client with a streaming generator.
+ */
+class FilesApi {
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+    private static final String[] FIELDS = {"fileName", "imageUrl", "thumbUrl", "displayUrl", "lastModified",
+            "fileDate", "length", "etag", "contentType"};
+    private static final int ALL_FIELDS = (1 << FIELDS.length) - 1;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    void send(HttpServletRequest request, HttpServletResponse response, Catalog.Snapshot snapshot)
+            throws IOException {
+        int limit;
+        long since;
+        int fields;
+        try {
+            limit = intParameter(request, "limit", DEFAULT_LIMIT);
+            since = longParameter(request, "since", Long.MIN_VALUE);
+            fields = parseFields(request.getParameter("fields"));
+        } catch (IllegalArgumentException e) {
+            response.sendError(SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            response.sendError(SC_BAD_REQUEST, "limit must be between 1 and " + MAX_LIMIT);
+            return;
+        }
+
+        List<ScreenshowFile> files = snapshot.getFiles();
+        int index = firstAfter(files, request.getParameter("cursor"));
+        response.setStatus(SC_OK);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-cache");
+        try (JsonGenerator json = jsonFactory.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeNumberField("version", snapshot.getVersion());
+            json.writeArrayFieldStart("files");
+            int written = 0;
+            String last = null;
+            for (; index < files.size() && written < limit; index++) {
+                ScreenshowFile file = files.get(index);
+                last = file.getFileName();
+                if (file.getLastModified() > since) {
+                    write(json, file, fields);
+                    written++;
+                }
+            }
+            json.writeEndArray();
+            if (index < files.size()) {
+                json.writeStringField("nextCursor", last);
+            } else {
+                json.writeNullField("nextCursor");
+            }
+            json.writeEndObject();
+        }
+    }
+
+    private static void write(JsonGenerator json, ScreenshowFile file, int fields) throws IOException {
+        json.writeStartObject();
+        for (int i = 0; i < FIELDS.length; i++) {
+            if ((fields & (1 << i)) == 0) {
+                continue;
+            }
+            switch (i) {
+                case 0:
+                    json.writeStringField(FIELDS[i], file.getFileName());
+                    break;
+                case 1:
+                    json.writeStringField(FIELDS[i], file.getImageUrl());
+                    break;
+                case 2:
+                    json.writeStringField(FIELDS[i], file.getThumbUrl());
+                    break;
+                case 3:
+                    json.writeStringField(FIELDS[i], file.getDisplayUrl());
+                    break;
+                case 4:
+                    json.writeNumberField(FIELDS[i], file.getLastModified());
+                    break;
+                case 5:
+                    json.writeStringField(FIELDS[i], file.getFileDate());
+                    break;
+                case 6:
+                    json.writeNumberField(FIELDS[i], file.getLength());
+                    break;
+                case 7:
+                    json.writeStringField(FIELDS[i], file.getEtag());
+                    break;
+                default:
+                    json.writeStringField(FIELDS[i], file.getContentType());
+            }
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * Index of the first file whose name sorts after the cursor.
+     */
+    private static int firstAfter(List<ScreenshowFile> files, String cursor) {
+        if (null == cursor || cursor.isEmpty()) {
+            return 0;
+        }
+        int low = 0;
+        int high = files.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (files.get(middle).getFileName().compareTo(cursor) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int parseFields(String value) {
+        if (null == value || value.isEmpty()) {
+            return ALL_FIELDS;
+        }
+        int fields = 0;
+        for (String name : value.split(",")) {
+            int field = indexOf(name.trim());
+            if (field < 0) {
+                throw new IllegalArgumentException("unknown field " + name.trim());
+            }
+            fields |= 1 << field;
+        }
+        return fields;
+    }
+
+    private static int indexOf(String name) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int intParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        try {
+            return null == value ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    private static long longParameter(HttpServletRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        try {
+            return null == value ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+}
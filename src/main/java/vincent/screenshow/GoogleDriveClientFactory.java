@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
+import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.store.DataStoreFactory;
+import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
+
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * Connects to Google Drive as the given user, running the OAuth installed application flow the first
+ * time and reusing the stored credentials afterwards.
+ */
+class GoogleDriveClientFactory implements DriveClientFactory {
+
+    static final String APPLICATION_NAME = "slideshow-pi";
+
+    /**
+     * Directory to store user credentials.
+     */
+    private static final java.io.File DATA_STORE_DIR =
+            new java.io.File(System.getProperty("user.home"), ".store/googledrivefiles");
+
+    /**
+     * Global instance of the JSON factory.
+     */
+    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private final String googleUserName;
+
+    /**
+     * Instance of the {@link DataStoreFactory}. The best practice is to make it a single
+     * shared instance across your application.
+     */
+    private FileDataStoreFactory dataStoreFactory;
+
+    /**
+     * Instance of the HTTP transport.
+     */
+    private HttpTransport httpTransport;
+
+    GoogleDriveClientFactory(String googleUserName) {
+        this.googleUserName = googleUserName;
+    }
+
+    /**
+     * Builds the Drive API client, authorizing first when needed.
+     */
+    @Override
+    public synchronized Drive create() throws Exception {
+        if (null == httpTransport) {
+            httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
+        }
+        Credential credential = authorize();
+        return new Drive.Builder(httpTransport, JSON_FACTORY, credential)
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+    }
+
+    /**
+     * Authorizes the installed application to access user's protected data.
+     */
+    private Credential authorize() throws Exception {
+        // load client secrets
+        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY,
+                new InputStreamReader(Main.class.getResourceAsStream("/client_secrets.json")));
+
+        // set up authorization code flow
+        GoogleAuthorizationCodeFlow flow =
+                new GoogleAuthorizationCodeFlow.Builder(httpTransport, JSON_FACTORY, clientSecrets,
+                        Arrays.asList(DriveScopes.DRIVE, DriveScopes.DRIVE_FILE))
+                        .setDataStoreFactory(dataStoreFactory)
+                        .build();
+        // authorize
+        return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver())
+                .authorize(googleUserName);
+    }
+}
@@ -16,156 +16,888 @@
 
 package vincent.screenshow;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.googleapis.media.MediaHttpDownloader;
 import com.google.api.client.googleapis.media.MediaHttpDownloaderProgressListener;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.FileList;
-import org.quartz.*;
-import org.quartz.impl.StdSchedulerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static java.util.Arrays.stream;
-import static java.util.Comparator.comparing;
-import static org.quartz.CronScheduleBuilder.cronSchedule;
-import static org.quartz.JobBuilder.newJob;
-import static org.quartz.TriggerBuilder.newTrigger;
-import static org.quartz.core.jmx.JobDataMapSupport.newJobDataMap;
 
 class GoogleDriveSync {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+    private static final int MAX_PAGE_SIZE = 1000;
+    /** Beyond this many pending files relisting the folder takes fewer calls than fetching each one. */
+    private static final int MAX_PENDING_FETCHES = 100;
     private final java.io.File downloadFolder;
-    private final java.io.File downloadTempFolder;
-    private final Scheduler scheduler;
+    private final DownloadStore downloadStore;
+    private final ExecutorService downloadPool;
+    private final ExecutorService listingPool;
+    private final ExecutorService syncPool;
+    private final SharedServices shared;
+    private final RateLimiter rateLimiter;
+    private final DriveRetry driveRetry;
+    private final ImageCache imageCache;
+    private final DiskBudget budget;
+    private final AtomicLong syncIds = new AtomicLong();
+    private final AtomicLong quarantineVersion = new AtomicLong();
+    private volatile long nextQuarantineExpiry;
+    /** Placements queued per checksum, whose blob must outlive every manifest reference to it. */
+    private final Map<String, Integer> pinned = new HashMap<>();
+    private volatile SyncRun currentRun;
+    private volatile Consumer<SyncRun> onFinished = run -> {
+    };
+    private final AdaptiveSyncScheduler scheduler;
+    private final SyncState syncState;
+    private final SyncManifest manifest;
+    private boolean adoptUntrackedFiles;
 
     private final ScreenshowConfig config;
+    private final Catalog catalog;
+    private final RenditionPipeline renditions;
     private Drive googleDrive;
 
-    GoogleDriveSync(ScreenshowConfig config, Drive googleDrive) throws SchedulerException {
+    GoogleDriveSync(ScreenshowConfig config, Drive googleDrive, SyncManifest manifest, Catalog catalog,
+                    RenditionPipeline renditions, DiskBudget budget, SharedServices shared) {
         this.config = config;
         this.googleDrive = googleDrive;
+        this.manifest = manifest;
+        this.catalog = catalog;
+        this.renditions = renditions;
+        this.budget = budget;
+        this.shared = shared;
         this.downloadFolder = new java.io.File(config.getDownloadFolder());
-        this.downloadTempFolder = new java.io.File(this.downloadFolder, "inprogress");
-        this.downloadTempFolder.mkdirs();
+        this.downloadStore = new DownloadStore(config);
+        this.downloadStore.collectGarbage(manifest, config.getPartialMaxAgeHours());
+        this.downloadStore.migrate(manifest);
+        this.syncState = SyncState.load(new java.io.File(stateFolder(config), "sync.json"));
+        this.adoptUntrackedFiles = manifest.isCreated();
         logger.info("Configured download folder = " + this.downloadFolder.getAbsolutePath());
-        Map<String, Object> dataMap = new HashMap<>();
-        dataMap.put("sync", this);
-        JobDetail jobDetail =
-                newJob(GoogleDriveSyncJob.class)
-                        .withIdentity("syncJob", "syncGroup")
-                        .usingJobData(newJobDataMap(dataMap))
-                        .build();
-
-        Trigger trigger = newTrigger().withIdentity("syncTrigger", "syncGroup")
-                .withSchedule(cronSchedule(config.getDownloadFrequency()))
-                .build();
-
-        SchedulerFactory sf = new StdSchedulerFactory();
-        scheduler = sf.getScheduler();
-        scheduler.scheduleJob(jobDetail, trigger);
+        this.downloadPool = shared.getDownloadPool();
+        this.listingPool = shared.getListingPool();
+        this.syncPool = shared.getSyncPool();
+        this.rateLimiter = shared.getRateLimiter();
+        this.driveRetry = shared.getDriveRetry();
+        this.imageCache = shared.getImageCache();
+        Metrics metrics = shared.getMetrics();
+        String show = config.getShowName();
+        metrics.gauge("screenshow_sync_last_downloaded_files", "Files downloaded by the latest sync.",
+                () -> null == currentRun ? 0 : currentRun.getFilesDone(), "show", show);
+        metrics.gauge("screenshow_sync_last_downloaded_bytes", "Bytes downloaded by the latest sync.",
+                () -> null == currentRun ? 0 : currentRun.getBytesDone(), "show", show);
+        metrics.gauge("screenshow_sync_quarantined_files", "Files left out of syncs after failing repeatedly.",
+                () -> quarantined().size(), "show", show);
+        this.scheduler = new AdaptiveSyncScheduler(config, this, shared.getTimer(), metrics);
+    }
+
+    /**
+     * Starts syncing on the adaptive schedule, next to the syncs requested by hand.
+     */
+    void startScheduling() {
         scheduler.start();
     }
 
-    List<ScreenshowFile> getFiles() {
-        java.io.File[] files = downloadFolder.listFiles();
-        if (null == files) {
-            return Collections.emptyList();
+    /**
+     * Called on the sync thread after every sync, whoever requested it.
+     */
+    void setOnFinished(Consumer<SyncRun> onFinished) {
+        this.onFinished = onFinished;
+    }
+
+    String getShowName() {
+        return config.getShowName();
+    }
+
+    /**
+     * Starts a sync in the background, or returns the one already running so that callers arriving
+     * while a sync is in flight all share its outcome instead of starting a competing one.
+     */
+    synchronized SyncRun requestSync() {
+        SyncRun run = currentRun;
+        if (null != run && !run.isDone()) {
+            return run;
+        }
+        SyncRun started = new SyncRun(syncIds.incrementAndGet());
+        currentRun = started;
+        syncPool.execute(() -> runSync(started));
+        return started;
+    }
+
+    /**
+     * The sync that is running, or the last one to finish; null before the first sync.
+     */
+    SyncRun currentRun() {
+        return currentRun;
+    }
+
+    /**
+     * Brings the download folder up to date. When incremental sync is enabled and a changes token was
+     * saved by a previous run only the Drive changes since that token are applied and the pending files
+     * are tried again, otherwise the whole folder is relisted and a fresh token is saved for the next run.
+     */
+    private void runSync(SyncRun run) {
+        logger.info("Starting sync " + run.getId() + " of " + config.getShowName());
+        long start = System.nanoTime();
+        long version = catalog.snapshot().getVersion();
+        Throwable error = null;
+        try {
+            evict(budget.beginSync());
+            syncFolder();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Trouble downloading from google.", e);
+            shared.syncErrors.increment();
+            error = e;
+        } finally {
+            saveState();
+            budget.save();
+            catalog.refresh();
+            if (catalog.snapshot().getVersion() != version) {
+                run.changed();
+            }
+            shared.syncDuration.observeSince(start);
+            shared.filesDownloaded.add(run.getFilesDone());
+            shared.bytesDownloaded.add(run.getBytesDone());
+            run.finished(error);
+            onFinished.accept(run);
+        }
+        logger.info("Finished sync " + run.getId() + " of " + config.getShowName());
+    }
+
+    private void syncFolder() throws IOException {
+        if (config.isIncrementalSync() && null != syncState.getChangesToken() && !adoptUntrackedFiles) {
+            try {
+                applyChanges(syncState.getChangesToken());
+                if (retryPending()) {
+                    syncState.save();
+                    return;
+                }
+            } catch (GoogleJsonResponseException e) {
+                if (!isInvalidToken(e)) {
+                    throw e;
+                }
+                logger.warn("Changes token rejected by google, falling back to a full sync.");
+            }
         }
-        return stream(files)
-                .filter(java.io.File::isFile)
-                .filter(file -> !file.getName().endsWith(".heic"))
-                .sorted(comparing(java.io.File::getName))
-                .map(file -> new ScreenshowFile(
-                        "/" + config.getDownloadFolder() + "/" + file.getName(),
-                        new Date(file.lastModified()).toString(),
-                        file.getName()))
+        // Take the token before listing so changes made while the full sync runs are picked up next time.
+        String startToken = null;
+        if (config.isIncrementalSync()) {
+            startToken = driveRetry.call("Fetching changes token", () -> {
+                long start = System.nanoTime();
+                try {
+                    return googleDrive.changes().getStartPageToken().execute().getStartPageToken();
+                } finally {
+                    shared.changesLatency.observeSince(start);
+                }
+            });
+        }
+        downloadFromFolder();
+        syncState.setChangesToken(startToken);
+        syncState.save();
+    }
+
+    private void applyChanges(String pageToken) throws IOException {
+        String newStartToken = pageToken;
+        int changeCount = 0;
+        while (null != pageToken) {
+            String token = pageToken;
+            ChangeList changes = driveRetry.call("Listing google drive changes", () -> {
+                long start = System.nanoTime();
+                try {
+                    return googleDrive.changes().list(token)
+                            .setSpaces("drive")
+                            .setIncludeRemoved(true)
+                            .setPageSize(MAX_PAGE_SIZE)
+                            .setFields("nextPageToken,newStartPageToken,changes(fileId,removed,file("
+                                    + DriveEntry.FIELDS + ",trashed,parents))")
+                            .execute();
+                } finally {
+                    shared.changesLatency.observeSince(start);
+                }
+            });
+            List<Future<?>> downloads = new ArrayList<>();
+            Map<String, CompletableFuture<Void>> blobs = new HashMap<>();
+            for (Change change : changes.getChanges()) {
+                File file = change.getFile();
+                if (null != file && FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                    continue;
+                }
+                changeCount++;
+                if (Boolean.TRUE.equals(change.getRemoved()) || null == file
+                        || Boolean.TRUE.equals(file.getTrashed()) || !isInSyncedFolder(file)) {
+                    deleteLocalFile(change.getFileId());
+                    continue;
+                }
+                syncFile(DriveEntry.of(file), downloads, blobs);
+            }
+            awaitDownloads(downloads);
+            if (null != changes.getNewStartPageToken()) {
+                newStartToken = changes.getNewStartPageToken();
+            }
+            pageToken = changes.getNextPageToken();
+            // Every file of the page is now placed or pending, so the next run may start after it.
+            syncState.setChangesToken(null != pageToken ? pageToken : newStartToken);
+            syncState.save();
+        }
+        manifest.compact();
+        logger.info("Applied " + changeCount + " google drive changes.");
+    }
+
+    /**
+     * Tries the pending and failed files again, see {@link SyncState#getPending()}. The changes feed
+     * only mentions a file when it changes on Drive, so each one is fetched by id; this is also what
+     * lets failures add up to a quarantine and an expired quarantine be tried again. It runs once the
+     * changes are applied, so room freed by deletions on Drive is used in the same sync. Returns false
+     * without fetching anything when so many are pending that a full relist is cheaper.
+     */
+    private boolean retryPending() throws IOException {
+        Set<String> pending = syncState.getPending();
+        pending.addAll(syncState.getFailures().keySet());
+        if (pending.size() > MAX_PENDING_FETCHES) {
+            logger.info(pending.size() + " files pending, relisting the google folder.");
+            return false;
+        }
+        List<DriveEntry> retry = new ArrayList<>();
+        for (String fileId : pending) {
+            File file = getFile(fileId);
+            if (null == file || Boolean.TRUE.equals(file.getTrashed()) || !isInSyncedFolder(file)) {
+                deleteLocalFile(fileId);
+            } else {
+                retry.add(DriveEntry.of(file));
+            }
+        }
+        // Most important first, so the budget goes to those when not all of them fit.
+        retry.sort(Comparator.comparingLong((DriveEntry file) -> priority(file)).reversed());
+        List<Future<?>> downloads = new ArrayList<>();
+        Map<String, CompletableFuture<Void>> blobs = new HashMap<>();
+        for (DriveEntry file : retry) {
+            syncFile(file, downloads, blobs);
+        }
+        awaitDownloads(downloads);
+        if (!retry.isEmpty()) {
+            logger.info("Retried " + retry.size() + " pending google drive files.");
+        }
+        return true;
+    }
+
+    private long priority(DriveEntry file) {
+        SyncManifest.Entry entry = manifest.get(file.getId());
+        String localPath = null != entry ? entry.getLocalPath() : safeFileName(file.getName());
+        return budget.priority(file.getMd5Checksum(), localPath, file.getModifiedTime());
+    }
+
+    /**
+     * Fetches the metadata of one file, or null when it no longer exists.
+     */
+    private File getFile(String fileId) throws IOException {
+        try {
+            return driveRetry.call("Fetching google drive file " + fileId, () -> {
+                long start = System.nanoTime();
+                try {
+                    return googleDrive.files().get(fileId)
+                            .setFields(DriveEntry.FIELDS + ",trashed,parents")
+                            .execute();
+                } finally {
+                    shared.fileLatency.observeSince(start);
+                }
+            });
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private boolean isInSyncedFolder(File file) {
+        return null != file.getParents() && file.getParents().contains(config.getGoogleFolderId());
+    }
+
+    private static boolean isInvalidToken(GoogleJsonResponseException e) {
+        int status = e.getStatusCode();
+        return status == 400 || status == 404 || status == 410;
+    }
+
+    /**
+     * Decides from the manifest alone whether a Drive file has to be downloaded, only renamed locally,
+     * or left alone. Downloads are queued on the download pool; content whose checksum is already in
+     * the blob store, or is being fetched for another file in the same batch, is only linked.
+     */
+    private void syncFile(DriveEntry file, List<Future<?>> downloads, Map<String, CompletableFuture<Void>> blobs)
+            throws IOException {
+        SyncManifest.Entry entry = manifest.get(file.getId());
+        String localName = manifest.claimName(file.getId(), safeFileName(file.getName()));
+        if (null != entry && isUnchanged(entry, file) && !entry.isEvicted()) {
+            if (!entry.getLocalPath().equals(localName)) {
+                renameLocalFile(entry, localName);
+            }
+            renditions.submit(entry.getMd5Checksum(), new java.io.File(downloadFolder, localName));
+            syncState.removePending(file.getId());
+            return;
+        }
+        if (null == entry && adoptUntrackedFiles && adoptExistingFile(file, localName)) {
+            syncState.removePending(file.getId());
+            return;
+        }
+        // Pending until the file is placed, whichever way this attempt ends.
+        syncState.addPending(file.getId());
+        if (isQuarantined(file)) {
+            logger.debug("Skipping quarantined file {}", file.getName());
+            return;
+        }
+        String checksum = file.getMd5Checksum();
+        if (null == checksum) {
+            long reservation = reserve(file, localName, entry);
+            if (reservation < 0) {
+                return;
+            }
+            currentRun.fileQueued(file.getSize());
+            downloads.add(downloadPool.submit(() -> {
+                try {
+                    downloadQuietly(file, localName, entry);
+                } finally {
+                    budget.release(reservation);
+                }
+            }));
+            return;
+        }
+        CompletableFuture<Void> blob = blobs.get(checksum);
+        long reservation = 0;
+        if (null == blob) {
+            if (pinIfReferenced(checksum)) {
+                blob = CompletableFuture.completedFuture(null);
+            } else {
+                reservation = reserve(file, localName, entry);
+                if (reservation < 0) {
+                    unpin(checksum);
+                    return;
+                }
+                currentRun.fileQueued(file.getSize());
+                blob = CompletableFuture.runAsync(() -> fetchBlob(file), downloadPool);
+            }
+            blobs.put(checksum, blob);
+        } else {
+            pin(checksum);
+        }
+        long placed = reservation;
+        downloads.add(blob.handleAsync((ignored, error) -> {
+            try {
+                if (null == error) {
+                    placeQuietly(file, localName, entry);
+                }
+            } finally {
+                unpin(checksum);
+                releaseIfUnreferenced(checksum);
+                budget.release(placed);
+            }
+            return null;
+        }, downloadPool));
+    }
+
+    /**
+     * Pins a checksum for a queued placement and tells whether the blob store already holds it. Until
+     * the placement is done, another entry of the same batch releasing its last reference to the
+     * checksum leaves the blob alone.
+     */
+    private boolean pinIfReferenced(String checksum) {
+        synchronized (pinned) {
+            pin(checksum);
+            return manifest.references(checksum) > 0;
+        }
+    }
+
+    private void pin(String checksum) {
+        synchronized (pinned) {
+            pinned.merge(checksum, 1, Integer::sum);
+        }
+    }
+
+    private void unpin(String checksum) {
+        synchronized (pinned) {
+            pinned.computeIfPresent(checksum, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Makes room for a download within the budget, evicting lower priority originals when needed.
+     * Returns the bytes reserved, or -1 when the file does not fit and is left out of this sync.
+     */
+    private long reserve(DriveEntry file, String localName, SyncManifest.Entry entry) throws IOException {
+        long size = null == file.getSize() ? 0 : file.getSize();
+        List<SyncManifest.Entry> evict = budget.reserve(size,
+                budget.priority(file.getMd5Checksum(), localName, file.getModifiedTime()));
+        if (null == evict) {
+            logger.info("Skipping " + file.getName() + ", it does not fit the download budget.");
+            if (null != entry && entry.isEvicted() && !entry.getLocalPath().equals(localName)) {
+                manifest.put(entry.withLocalPath(localName));
+            }
+            return -1;
+        }
+        evict(evict);
+        return size;
+    }
+
+    /**
+     * Deletes originals to stay within the budget. The entries stay in the manifest marked as evicted,
+     * so their renditions stay in the catalog and the original comes back once there is room.
+     */
+    private void evict(List<SyncManifest.Entry> entries) throws IOException {
+        for (SyncManifest.Entry entry : entries) {
+            java.io.File visible = new java.io.File(downloadFolder, entry.getLocalPath());
+            manifest.put(entry.asEvicted());
+            syncState.addPending(entry.getId());
+            imageCache.invalidate(visible);
+            if (visible.delete()) {
+                logger.info("Evicted {} to stay within the download budget.", visible.getAbsolutePath());
+            }
+            releaseIfUnreferenced(entry.getMd5Checksum());
+        }
+    }
+
+    private void fetchBlob(DriveEntry file) {
+        try {
+            downloadWithRetry(file, downloadStore.blob(file.getMd5Checksum()));
+        } catch (IOException e) {
+            downloadFailed(file, e);
+            throw new UncheckedIOException(e);
+        }
+        downloadSucceeded(file);
+    }
+
+    private void downloadWithRetry(DriveEntry file, java.io.File saveAs) throws IOException {
+        AtomicBoolean firstAttempt = new AtomicBoolean(true);
+        driveRetry.call("Downloading " + file.getName(),
+                () -> downloadFile(file, saveAs, firstAttempt.getAndSet(false)));
+    }
+
+    private void downloadSucceeded(DriveEntry file) {
+        currentRun.fileDone();
+        if (syncState.clearFailure(file.getId())) {
+            quarantineChanged();
+        }
+    }
+
+    /**
+     * Records a download that failed even after retrying. The rest of the sync carries on, and a file
+     * that keeps failing is quarantined until it changes on Drive or the quarantine runs out.
+     */
+    private void downloadFailed(DriveEntry file, IOException e) {
+        shared.downloadErrors.increment();
+        currentRun.fileFailed();
+        DownloadFailure failure = syncState.recordFailure(file.getId(), file.getName(), version(file),
+                String.valueOf(e.getMessage()));
+        quarantineChanged();
+        saveState();
+        if (failure.getFailures() >= config.getQuarantineAfterFailures()) {
+            logger.error("Trouble downloading " + file.getName() + ", quarantined after " + failure.getFailures()
+                    + " failed syncs.", e);
+        } else {
+            logger.error("Trouble downloading " + file.getName() + ", skipping it for this sync.", e);
+        }
+    }
+
+    /**
+     * Saves the sync state, logging rather than throwing so a failure can be kept from any thread.
+     */
+    private void saveState() {
+        try {
+            syncState.save();
+        } catch (IOException e) {
+            logger.warn("Unable to save the sync state of " + config.getShowName() + ".", e);
+        }
+    }
+
+    private boolean isQuarantined(DriveEntry file) {
+        DownloadFailure failure = syncState.getFailure(file.getId());
+        return null != failure && isQuarantined(failure) && failure.getVersion().equals(version(file));
+    }
+
+    private boolean isQuarantined(DownloadFailure failure) {
+        return failure.getFailures() >= config.getQuarantineAfterFailures()
+                && quarantineExpiry(failure) > System.currentTimeMillis();
+    }
+
+    private long quarantineExpiry(DownloadFailure failure) {
+        return failure.getLastFailure() + TimeUnit.HOURS.toMillis(config.getQuarantineHours());
+    }
+
+    /**
+     * Files currently left out of syncs, for the status page.
+     */
+    List<DownloadFailure> quarantined() {
+        return syncState.getFailures().values().stream()
+                .filter(this::isQuarantined)
                 .collect(Collectors.toList());
     }
 
-    void downloadFromFolder() throws IOException {
-        String pageToken = null;
-        Set<String> googleSyncedFiles = new HashSet<>();
-        do {
-            FileList result = googleDrive.files().list()
-                    .setQ("mimeType != 'application/vnd.google-apps.folder' "
-                            + "and trashed = false and '"
-                            + config.getGoogleFolderId() + "' in parents")
-
-                    .setSpaces("drive")
-                    .setFields("files,nextPageToken")
-                    .setPageToken(pageToken)
-                    .execute();
-            for (File file : result.getFiles()) {
-                googleSyncedFiles.add(downloadFile(file).getAbsolutePath());
-            }
-            pageToken = result.getNextPageToken();
-        } while (pageToken != null);
-
-        deleteRemovedFiles(googleSyncedFiles);
-    }
-
-    private void deleteRemovedFiles(Set<String> googleSyncedFiles) {
-        java.io.File[] files = downloadFolder.listFiles();
-        if (null == files) {
+    /**
+     * Moves whenever the failures change or a quarantine runs out, so pages showing them know when to
+     * render again.
+     */
+    long getQuarantineVersion() {
+        if (System.currentTimeMillis() >= nextQuarantineExpiry) {
+            synchronized (quarantineVersion) {
+                if (System.currentTimeMillis() >= nextQuarantineExpiry) {
+                    nextQuarantineExpiry = quarantined().stream()
+                            .mapToLong(this::quarantineExpiry)
+                            .min()
+                            .orElse(Long.MAX_VALUE);
+                    quarantineVersion.incrementAndGet();
+                }
+            }
+        }
+        return quarantineVersion.get();
+    }
+
+    private void quarantineChanged() {
+        synchronized (quarantineVersion) {
+            nextQuarantineExpiry = 0;
+            quarantineVersion.incrementAndGet();
+        }
+    }
+
+    private static String version(DriveEntry file) {
+        return null != file.getMd5Checksum() ? file.getMd5Checksum() : Long.toHexString(file.getModifiedTime());
+    }
+
+    /**
+     * Links the visible file to its blob and records it, then cleans up whatever the entry pointed at
+     * before.
+     */
+    private void placeQuietly(DriveEntry file, String localName, SyncManifest.Entry previous) {
+        try {
+            java.io.File saveAs = new java.io.File(downloadFolder, localName);
+            downloadStore.link(file.getMd5Checksum(), saveAs);
+            imageCache.invalidate(saveAs);
+            manifest.put(manifestEntry(file, localName));
+            syncState.removePending(file.getId());
+            renditions.submit(file.getMd5Checksum(), saveAs);
+            releasePrevious(previous, localName);
+        } catch (IOException e) {
+            logger.error("Trouble placing " + file.getName() + ", skipping it for this sync.", e);
+        }
+    }
+
+    private void releasePrevious(SyncManifest.Entry previous, String localName) {
+        if (null == previous) {
             return;
         }
-        stream(files)
-                .filter(file -> !file.isDirectory()
-                        && !googleSyncedFiles.contains(file.getAbsolutePath())
-                        && file.delete())
-                .forEach(file -> logger.info("Deleting removed file: {}", file.getAbsolutePath()));
-    }
-
-    private java.io.File downloadFile(File file) throws IOException {
-        String safeFileName = safeFileName(file.getName());
-        java.io.File saveAs = new java.io.File(downloadFolder, safeFileName);
-        if (saveAs.exists()) {
-            logger.info("Not downloading existing file: " + saveAs.getAbsolutePath());
-            return saveAs;
-        }
-        java.io.File downloadTo = java.io.File.createTempFile("acc-sync_", "_" + safeFileName, downloadTempFolder);
-        logger.info("downloading file:" + safeFileName + " to " + downloadTo.getAbsolutePath());
-        try (FileOutputStream fos = new FileOutputStream(downloadTo)) {
-            Drive.Files.Get request = googleDrive.files().get(file.getId());
-            request.getMediaHttpDownloader()
-                    .setProgressListener(new ProgressListener()).setChunkSize(1024 * 1024);
-            request.executeMediaAndDownloadTo(fos);
-            fos.flush();
-        }
-        downloadTo.renameTo(saveAs);
+        if (!previous.getLocalPath().equals(localName)) {
+            deleteIfUnreferenced(previous.getLocalPath());
+        }
+        releaseIfUnreferenced(previous.getMd5Checksum());
+    }
+
+    private void releaseIfUnreferenced(String checksum) {
+        if (null == checksum) {
+            return;
+        }
+        synchronized (pinned) {
+            if (manifest.references(checksum) == 0 && !pinned.containsKey(checksum)) {
+                downloadStore.release(checksum);
+            }
+        }
+    }
+
+    private static boolean isUnchanged(SyncManifest.Entry entry, DriveEntry file) {
+        if (null != file.getMd5Checksum()) {
+            return file.getMd5Checksum().equals(entry.getMd5Checksum());
+        }
+        return Objects.equals(entry.getSize(), file.getSize()) && entry.getModifiedTime() == file.getModifiedTime();
+    }
+
+    private static SyncManifest.Entry manifestEntry(DriveEntry file, String localName) {
+        return new SyncManifest.Entry(file.getId(), file.getMd5Checksum(), file.getSize(), file.getModifiedTime(), localName);
+    }
+
+    /**
+     * Files downloaded before the manifest existed are taken over when their size matches Drive,
+     * instead of being downloaded again.
+     */
+    private boolean adoptExistingFile(DriveEntry file, String localName) throws IOException {
+        java.io.File existing = new java.io.File(downloadFolder, localName);
+        if (!existing.isFile() || null == file.getSize() || existing.length() != file.getSize()) {
+            return false;
+        }
+        if (null != file.getMd5Checksum()) {
+            downloadStore.adopt(existing, file.getMd5Checksum());
+        }
+        manifest.put(manifestEntry(file, localName));
+        renditions.submit(file.getMd5Checksum(), existing);
+        return true;
+    }
+
+    private void renameLocalFile(SyncManifest.Entry entry, String localName) throws IOException {
+        java.io.File from = new java.io.File(downloadFolder, entry.getLocalPath());
+        java.io.File to = new java.io.File(downloadFolder, localName);
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        manifest.put(entry.withLocalPath(localName));
+        logger.info("Renamed " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+    }
+
+    private void deleteLocalFile(String fileId) throws IOException {
+        if (syncState.clearFailure(fileId)) {
+            quarantineChanged();
+        }
+        syncState.removePending(fileId);
+        SyncManifest.Entry removed = manifest.remove(fileId);
+        if (null != removed) {
+            deleteIfUnreferenced(removed.getLocalPath());
+            releaseIfUnreferenced(removed.getMd5Checksum());
+        }
+    }
+
+    private void deleteIfUnreferenced(String fileName) {
+        if (manifest.isReferenced(fileName)) {
+            return;
+        }
+        java.io.File file = new java.io.File(downloadFolder, fileName);
+        imageCache.invalidate(file);
+        if (file.delete()) {
+            logger.info("Deleting removed file: {}", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Mirrors the google folder into the download folder. Each page of the listing is downloaded on the
+     * download pool while the next page is fetched, and local files are only deleted once every download
+     * has finished. A failed file is logged and skipped so it does not stop the rest of the sync.
+     */
+    void downloadFromFolder() throws IOException {
+        Set<String> googleFileIds = new HashSet<>();
+        DriveEntry.Page result = listFolder(null);
+        while (null != result) {
+            Future<DriveEntry.Page> nextPage = fetchNextPage(result.getNextPageToken());
+            List<Future<?>> downloads = new ArrayList<>();
+            Map<String, CompletableFuture<Void>> blobs = new HashMap<>();
+            for (DriveEntry file : result.getEntries()) {
+                googleFileIds.add(file.getId());
+                syncFile(file, downloads, blobs);
+            }
+            awaitDownloads(downloads);
+            result = awaitPage(nextPage);
+        }
+
+        deleteRemovedFiles(googleFileIds);
+        manifest.compact();
+        renditions.retain(manifest.entries().stream()
+                .map(SyncManifest.Entry::getMd5Checksum)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet()));
+    }
+
+    /**
+     * Lists one page of the folder, asking only for the fields a sync uses and as many files per page
+     * as Drive allows. The response is parsed as it streams in, see {@link DriveEntry#readPage}.
+     */
+    private DriveEntry.Page listFolder(String pageToken) throws IOException {
+        return driveRetry.call("Listing google folder", () -> {
+            long start = System.nanoTime();
+            HttpResponse response = null;
+            try {
+                response = googleDrive.files().list()
+                        .setQ("mimeType != '" + FOLDER_MIME_TYPE + "' "
+                                + "and trashed = false and '"
+                                + config.getGoogleFolderId() + "' in parents")
+
+                        .setSpaces("drive")
+                        .setOrderBy(budget.isLimited() ? "modifiedTime desc" : null)
+                        .setFields("nextPageToken,files(" + DriveEntry.FIELDS + ")")
+                        .setPageSize(MAX_PAGE_SIZE)
+                        .setPageToken(pageToken)
+                        .executeUnparsed();
+                return DriveEntry.readPage(response.getContent());
+            } finally {
+                if (null != response) {
+                    response.disconnect();
+                }
+                shared.listLatency.observeSince(start);
+            }
+        });
+    }
+
+    private Future<DriveEntry.Page> fetchNextPage(String pageToken) throws IOException {
+        if (null == pageToken) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (config.isPrefetchNextPage()) {
+            return listingPool.submit(() -> listFolder(pageToken));
+        }
+        return CompletableFuture.completedFuture(listFolder(pageToken));
+    }
+
+    private DriveEntry.Page awaitPage(Future<DriveEntry.Page> page) throws IOException {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing google folder.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to list google folder.", e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the downloads of a batch, then releases the names claimed by files it did not place.
+     */
+    private void awaitDownloads(List<Future<?>> downloads) throws IOException {
+        try {
+            for (Future<?> download : downloads) {
+                try {
+                    download.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for downloads.", e);
+                } catch (ExecutionException e) {
+                    logger.error("Unexpected download failure.", e.getCause());
+                }
+            }
+        } finally {
+            manifest.releaseClaims();
+        }
+    }
+
+    private void downloadQuietly(DriveEntry file, String localName, SyncManifest.Entry previous) {
+        try {
+            java.io.File saveAs = new java.io.File(downloadFolder, localName);
+            downloadWithRetry(file, saveAs);
+            manifest.put(manifestEntry(file, localName));
+            syncState.removePending(file.getId());
+            renditions.submit(file.getMd5Checksum(), saveAs);
+            releasePrevious(previous, localName);
+            downloadSucceeded(file);
+        } catch (IOException e) {
+            downloadFailed(file, e);
+        }
+    }
+
+    private void deleteRemovedFiles(Set<String> googleFileIds) throws IOException {
+        if (syncState.retainFailures(googleFileIds)) {
+            quarantineChanged();
+        }
+        syncState.retainPending(googleFileIds);
+        for (String fileId : manifest.fileIds()) {
+            if (!googleFileIds.contains(fileId)) {
+                deleteLocalFile(fileId);
+            }
+        }
+        if (adoptUntrackedFiles) {
+            // One time sweep of files left over from before the manifest existed.
+            java.io.File[] files = downloadFolder.listFiles();
+            if (null != files) {
+                stream(files)
+                        .filter(file -> !file.isDirectory()
+                                && !manifest.isReferenced(file.getName())
+                                && file.delete())
+                        .forEach(file -> logger.info("Deleting removed file: {}", file.getAbsolutePath()));
+            }
+            adoptUntrackedFiles = false;
+        }
+    }
+
+    /**
+     * Downloads into a partial file named after the Drive id and version. When an earlier attempt left
+     * bytes behind the download resumes from there with a range request, and the result is checked
+     * against the Drive md5 before it replaces the local file.
+     */
+    private java.io.File downloadFile(DriveEntry file, java.io.File saveAs, boolean countResumed) throws IOException {
+        java.io.File partial = downloadStore.partialFile(file.getId(), version(file));
+        Long size = file.getSize();
+        long existing = null == size || partial.length() > size ? 0 : partial.length();
+        SyncRun run = currentRun;
+        run.fileStarted(file.getName());
+        if (countResumed) {
+            run.bytesTransferred(existing);
+        }
+        if (null == size || existing < size) {
+            if (existing > 0) {
+                logger.info("resuming download of " + saveAs.getName() + " at byte " + existing);
+            } else {
+                logger.info("downloading file:" + saveAs.getName() + " to " + partial.getAbsolutePath());
+            }
+            try (OutputStream fos = new ThrottledOutputStream(new FileOutputStream(partial, existing > 0), rateLimiter)) {
+                Drive.Files.Get request = googleDrive.files().get(file.getId());
+                MediaHttpDownloader downloader = request.getMediaHttpDownloader()
+                        .setProgressListener(new ProgressListener(run, existing))
+                        .setChunkSize(rateLimiter.chunkSize());
+                if (existing > 0) {
+                    downloader.setBytesDownloaded(existing);
+                }
+                long start = System.nanoTime();
+                try {
+                    request.executeMediaAndDownloadTo(fos);
+                } finally {
+                    shared.getLatency.observeSince(start);
+                }
+            }
+        }
+        if (null != file.getMd5Checksum() && !file.getMd5Checksum().equals(DownloadStore.md5(partial))) {
+            partial.delete();
+            throw new IOException("Checksum mismatch downloading " + file.getName() + ", discarding partial.");
+        }
+        downloadStore.commit(partial, saveAs);
+        imageCache.invalidate(saveAs);
         logger.info("Download Complete: " + saveAs.getAbsolutePath());
         return saveAs;
     }
 
-    private String safeFileName(String name) {
+    static String safeFileName(String name) {
         return name.toLowerCase().replaceAll(" ", "_").replaceAll("[^a-z0-9_\\.]", "");
     }
 
+    static java.io.File stateFolder(ScreenshowConfig config) {
+        return new java.io.File(config.getDownloadFolder(), "state");
+    }
+
+    /**
+     * Stops scheduling syncs of this show. The shared pools are stopped by their owner.
+     */
     void shutdown() {
-        try {
-            scheduler.shutdown(true);
-        } catch (SchedulerException e) {
-            logger.error("Trouble shutting down GoogleDriveSync scheduler.", e);
-        }
+        scheduler.stop();
     }
 
     private static class ProgressListener implements MediaHttpDownloaderProgressListener {
+        private final SyncRun run;
+        private long reported;
+
+        ProgressListener(SyncRun run, long alreadyReported) {
+            this.run = run;
+            this.reported = alreadyReported;
+        }
 
         @Override
         public void progressChanged(MediaHttpDownloader mediaHttpDownloader) throws IOException {
             if (null == mediaHttpDownloader) {
                 return;
             }
+            long downloaded = mediaHttpDownloader.getNumBytesDownloaded();
+            run.bytesTransferred(downloaded - reported);
+            reported = downloaded;
             switch (mediaHttpDownloader.getDownloadState()) {
                 case MEDIA_IN_PROGRESS: {
                     double percent = mediaHttpDownloader.getProgress() * 100.0;
-                    logger.info(String.format("download progress: %3.2f", percent));
+                    logger.debug(String.format("download progress: %3.2f", percent));
                 }
                 case MEDIA_COMPLETE:
                     logger.info("download complete.");
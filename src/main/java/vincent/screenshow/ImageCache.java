@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Keeps the bytes of recently served images in direct buffers, so a slideshow looping over the same
+ * images reads each of them from the SD card once. Entries are dropped least recently used first when
+ * the total would exceed {@code imageCacheBytes}. A hit is handed to Jetty as a read only view of the
+ * cached buffer, nothing is copied.
+ * <p>
+ * Entries are checked against the entity tag of the request, and the sync drops the entry of every
+ * file it replaces or deletes.
+ */
+class ImageCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+    private final Metrics.Counter evictions;
+    private long bytes;
+
+    ImageCache(ScreenshowConfig config, Metrics metrics) {
+        this.maxBytes = Math.max(0, config.getImageCacheBytes());
+        // A single huge original should not flush the whole slideshow out of the cache.
+        this.maxEntryBytes = maxBytes / 4;
+        this.hits = metrics.counter("screenshow_image_cache_hits_total",
+                "Images served from memory, the hit ratio is hits / (hits + misses).");
+        this.misses = metrics.counter("screenshow_image_cache_misses_total", "Images read from disk.");
+        this.evictions = metrics.counter("screenshow_image_cache_evictions_total",
+                "Images dropped to stay within the cache size.");
+        metrics.gauge("screenshow_image_cache_bytes", "Bytes held by the image cache.", this::getBytes);
+        metrics.gauge("screenshow_image_cache_entries", "Images held by the image cache.", this::size);
+    }
+
+    /**
+     * Returns the content of a file as a read only buffer positioned at zero, loading it on a miss,
+     * or null when the file is too big to cache or did not have the expected length.
+     */
+    ByteBuffer get(Path file, String etag, long length) throws IOException {
+        if (length <= 0 || length > maxEntryBytes) {
+            return null;
+        }
+        Path path = file.toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (null != entry && entry.etag.equals(etag)) {
+                hits.increment();
+                return entry.content.asReadOnlyBuffer();
+            }
+        }
+        misses.increment();
+        ByteBuffer content = load(path, length);
+        if (null == content) {
+            return null;
+        }
+        put(path, new Entry(etag, content));
+        return content.asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer load(Path path, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            if (channel.size() != length) {
+                return null;
+            }
+            ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) {
+                    return null;
+                }
+            }
+            content.flip();
+            return content;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private synchronized void put(Path path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (null != previous) {
+            bytes -= previous.content.capacity();
+        }
+        bytes += entry.content.capacity();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().content.capacity();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Drops a file that was replaced or deleted on disk.
+     */
+    void invalidate(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry removed = entries.remove(path);
+            if (null != removed) {
+                bytes -= removed.content.capacity();
+            }
+        }
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final String etag;
+        private final ByteBuffer content;
+
+        Entry(String etag, ByteBuffer content) {
+            this.etag = etag;
+            this.content = content;
+        }
+    }
+}
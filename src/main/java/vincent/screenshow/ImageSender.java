@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static javax.servlet.http.HttpServletResponse.*;
+
+/**
+ * Sends catalogued files with validators, conditional GET and single byte range support. The body
+ * goes out as a cached or memory mapped buffer through Jetty's {@link HttpOutput} so the bytes are
+ * never copied through the heap, except for bodies too large to map.
+ */
+class ImageSender {
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+    /**
+     * Larger bodies, videos mostly, are copied through a small buffer instead of being mapped: a
+     * mapping cannot exceed 2GB and is only unmapped by the garbage collector, which a 32-bit Pi's
+     * address space does not tolerate for long.
+     */
+    private static final long MAP_MAX_BYTES = 32L * 1024 * 1024;
+
+    private final Path downloadFolder;
+    private final ImageCache cache;
+
+    ImageSender(ScreenshowConfig config, ImageCache cache) {
+        this.downloadFolder = Path.of(config.getDownloadFolder()).toAbsolutePath().normalize();
+        this.cache = cache;
+    }
+
+    /**
+     * Resolves a file name from the url against the download folder, or returns null when it would
+     * point anywhere else.
+     */
+    Path resolve(String fileName) {
+        Path path = downloadFolder.resolve(fileName).normalize();
+        if (!downloadFolder.equals(path.getParent())) {
+            return null;
+        }
+        return path;
+    }
+
+    void send(HttpServletRequest request, HttpServletResponse response, ScreenshowFile file) throws IOException {
+        Path path = resolve(file.getFileName());
+        if (null == path) {
+            response.setStatus(SC_NOT_FOUND);
+            return;
+        }
+        // Urls handed out by the catalog carry the checksum, so those responses can be cached forever.
+        send(request, response, path, file.getEtag(), file.getLastModified(), file.getLength(),
+                file.getContentType(), file.getEtag().equals(request.getParameter("v")));
+    }
+
+    /**
+     * Sends a rendition, which is named after the checksum of its original and therefore immutable.
+     */
+    void sendRendition(HttpServletRequest request, HttpServletResponse response, File rendition, String etag)
+            throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(rendition.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            response.setStatus(SC_NOT_FOUND);
+            return;
+        }
+        send(request, response, rendition.toPath(), etag, attributes.lastModifiedTime().toMillis(),
+                attributes.size(), "image/jpeg", true);
+    }
+
+    private void send(HttpServletRequest request, HttpServletResponse response, Path path, String entityTag,
+                      long lastModified, long length, String contentType, boolean immutable) throws IOException {
+        String etag = "\"" + entityTag + "\"";
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Cache-Control", immutable ? IMMUTABLE : REVALIDATE);
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        long[] range = parseRange(request, etag, lastModified, length);
+        if (null != range) {
+            if (range.length == 0) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            start = range[0];
+            end = range[1];
+            response.setStatus(SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        } else {
+            response.setStatus(SC_OK);
+        }
+        long count = end - start + 1;
+        response.setContentType(contentType);
+        response.setContentLengthLong(count);
+        if ("HEAD".equals(request.getMethod()) || count <= 0) {
+            return;
+        }
+
+        ServletOutputStream out = response.getOutputStream();
+        if (out instanceof HttpOutput) {
+            ByteBuffer content = cache.get(path, entityTag, length);
+            if (null != content) {
+                content.position((int) start).limit((int) (start + count));
+                ((HttpOutput) out).sendContent(content);
+                return;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            if (out instanceof HttpOutput && count <= MAP_MAX_BYTES) {
+                ((HttpOutput) out).sendContent(channel.map(FileChannel.MapMode.READ_ONLY, start, count));
+            } else {
+                WritableByteChannel target = Channels.newChannel(out);
+                for (long sent = 0; sent < count; ) {
+                    long transferred = channel.transferTo(start + sent, count - sent, target);
+                    if (transferred <= 0) {
+                        throw new EOFException(path + " shrank while it was being sent.");
+                    }
+                    sent += transferred;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Deleted since the catalog was built, for example evicted to stay within the budget.
+            response.reset();
+            response.setStatus(SC_NOT_FOUND);
+        }
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (null != ifNoneMatch) {
+            return matches(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean matches(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {start, end} for a satisfiable single range, an empty array for an unsatisfiable one and
+     * null when the whole file should be sent. Multiple ranges are answered with the whole file.
+     */
+    private static long[] parseRange(HttpServletRequest request, String etag, long lastModified, long length) {
+        String header = request.getHeader("Range");
+        if (null == header || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if (null != ifRange) {
+            boolean isEtag = ifRange.startsWith("\"") || ifRange.startsWith("W/");
+            if (isEtag ? !ifRange.equals(etag) : lastModified / 1000 != request.getDateHeader("If-Range") / 1000) {
+                return null;
+            }
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start >= length || start > end) {
+                return new long[0];
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
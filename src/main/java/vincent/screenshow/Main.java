@@ -17,20 +17,8 @@
 package vincent.screenshow;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
-import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.client.util.store.DataStoreFactory;
-import com.google.api.client.util.store.FileDataStoreFactory;
-import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.DriveScopes;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -41,40 +29,21 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Main {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
 
-    /**
-     * Directory to store user credentials.
-     */
-    private static final java.io.File DATA_STORE_DIR =
-            new java.io.File(System.getProperty("user.home"), ".store/googledrivefiles");
-
-    private static String APPLICATION_NAME = "slideshow-pi";
-
-    /**
-     * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
-     * globally shared instance across your application.
-     */
-    private static FileDataStoreFactory dataStoreFactory;
-
-    /**
-     * Global instance of the HTTP transport.
-     */
-    private static HttpTransport httpTransport;
-
-    /**
-     * Global instance of the JSON factory.
-     */
-    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
-
-    private static GoogleDriveSync googleDriveSync;
+    private static DriveStartup driveStartup;
 
     public static void main(String[] args) {
-        if (args.length != 2) {
+        // Renditions are drawn with java2d, the Pi may not have a display attached.
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 1 || args.length > 2) {
             System.err.println(
                     "USAGE: java -jar screenshow-1.0.jar [Google Drive email] [Google Drive Folder ID]");
             System.exit(1);
@@ -90,32 +59,26 @@ public class Main {
             if (config.getPort() <= 0) {
                 throw new IllegalStateException("Problem with config?");
             }
-            config.setGoogleFolderId(args[1]);
+            if (args.length == 2) {
+                config.setGoogleFolderId(args[1]);
+            } else if (config.getShows().isEmpty()) {
+                throw new IllegalStateException("Pass a folder id or configure 'shows' in 'config.json'.");
+            }
+            validateShows(config);
         } catch (IOException e) {
             throw new IllegalStateException("Unable to read 'config.json'.", e);
         }
 
-        // Global Drive API client.
-        Drive drive;
-        try {
-            httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-            dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
-            // authorization
-            Credential credential = authorize(args[0]);
-            // set up the global Drive instance
-            drive = new Drive.Builder(httpTransport, JSON_FACTORY, credential)
-                    .setApplicationName(APPLICATION_NAME)
-                    .build();
-        } catch (Exception e) {
-            throw new IllegalStateException(e);
-        }
-
-
         // Create a basic jetty server object that will listen on port 8080.
         // Note that if you set this to port 0 then a randomly available port
         // will be assigned that you can either look in the logs for the port,
         // or programmatically obtain it for use in test cases.
-        Server server = new Server(config.getPort());
+        // With virtual threads every request gets its own instead of a pool of 200 waiting around.
+        Server server = config.isVirtualThreads() && VirtualThreads.isAvailable()
+                ? new Server(new VirtualThreadPool()) : new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(config.getPort());
+        server.addConnector(connector);
 
         // The ServletHandler is a dead simple way to create a context handler
         // that is backed by an instance of a Servlet.
@@ -128,20 +91,54 @@ public class Main {
 
         // Start things up!
         try {
-            googleDriveSync = new GoogleDriveSync(config, drive);
-
-            MainServlet mainServlet = new MainServlet(config, googleDriveSync);
-            ServletHolder servletHolder = new ServletHolder();
-            servletHolder.setServlet(mainServlet);
-            handler.addServletWithMapping(servletHolder, "/");
+            SharedServices shared = new SharedServices(config);
+            // The folder given on the command line stays the show at "/", named shows live under /show/.
+            List<Show> shows = new ArrayList<>();
+            if (null != config.getGoogleFolderId()) {
+                shows.add(new Show(config, shared));
+            }
+            for (ShowConfig showConfig : config.getShows()) {
+                shows.add(new Show(config.forShow(showConfig), shared));
+            }
+            // The slideshow is served from disk right away, Drive is connected once the network is up.
+            DriveClientFactory driveClients = null == config.getDriveRootUrl()
+                    ? new GoogleDriveClientFactory(args[0])
+                    : DriveClientFactory.endpoint(config.getDriveRootUrl());
+            driveStartup = new DriveStartup(driveClients::create, drive -> {
+                List<GoogleDriveSync> syncs = new ArrayList<>();
+                for (Show show : shows) {
+                    GoogleDriveSync sync = show.startSync(drive, shared);
+                    sync.startScheduling();
+                    syncs.add(sync);
+                }
+                return syncs;
+            });
+
+            for (Show show : shows) {
+                MainServlet mainServlet = new MainServlet(show.getConfig(), () -> driveStartup.getSync(show.getName()),
+                        show.getCatalog(), show.getRenditions(), show.getBudget(), shared);
+                ServletHolder servletHolder = new ServletHolder();
+                servletHolder.setServlet(mainServlet);
+                servletHolder.setAsyncSupported(true);
+                String basePath = show.getConfig().getBasePath();
+                handler.addServletWithMapping(servletHolder, basePath.isEmpty() ? "/" : basePath + "/*");
+            }
+            if (null == config.getGoogleFolderId()) {
+                handler.addServletWithMapping(new ServletHolder(
+                        new ShowIndexServlet(config.getShows(), shared.getMetrics())), "/");
+            }
 
             server.start();
-            logger.info("Web service started.");
+            logger.info("Web service started " + ManagementFactory.getRuntimeMXBean().getUptime()
+                    + "ms after launch.");
+            driveStartup.start();
             server.addLifeCycleListener(
                     new AbstractLifeCycleListener() {
                         @Override
                         public void lifeCycleStopping(LifeCycle event) {
-                            googleDriveSync.shutdown();
+                            driveStartup.shutdown();
+                            shows.forEach(Show::close);
+                            shared.shutdown();
                             logger.info("Shutting down.");
                         }
                     }
@@ -152,23 +149,28 @@ public class Main {
         }
     }
 
-
     /**
-     * Authorizes the installed application to access user's protected data.
+     * Show names become url segments, and two shows syncing into the same folder would delete each
+     * other's files.
      */
-    private static Credential authorize(String googleUserName) throws Exception {
-        // load client secrets
-        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY,
-                new InputStreamReader(Main.class.getResourceAsStream("/client_secrets.json")));
-
-        // set up authorization code flow
-        GoogleAuthorizationCodeFlow flow =
-                new GoogleAuthorizationCodeFlow.Builder(httpTransport, JSON_FACTORY, clientSecrets,
-                        Arrays.asList(DriveScopes.DRIVE, DriveScopes.DRIVE_FILE))
-                        .setDataStoreFactory(dataStoreFactory)
-                        .build();
-        // authorize
-        return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver())
-                .authorize(googleUserName);
+    private static void validateShows(ScreenshowConfig config) {
+        Set<String> names = new HashSet<>();
+        Set<String> folders = new HashSet<>();
+        if (null != config.getGoogleFolderId()) {
+            // The show at "/" is named after the config, its syncs and metrics are told apart by name.
+            names.add(config.getShowName());
+            folders.add(config.getDownloadFolder());
+        }
+        for (ShowConfig show : config.getShows()) {
+            if (null == show.getName() || !show.getName().matches("[a-z0-9_-]+")) {
+                throw new IllegalStateException("Show names may only use a-z, 0-9, '_' and '-': " + show.getName());
+            }
+            if (null == show.getGoogleFolderId() || null == show.getDownloadFolder()) {
+                throw new IllegalStateException("Show '" + show.getName() + "' needs a googleFolderId and a downloadFolder.");
+            }
+            if (!names.add(show.getName()) || !folders.add(show.getDownloadFolder())) {
+                throw new IllegalStateException("Show '" + show.getName() + "' repeats a name or download folder.");
+            }
+        }
     }
 }
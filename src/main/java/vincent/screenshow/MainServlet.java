@@ -18,96 +18,348 @@ package vincent.screenshow;
 
 import com.github.jknack.handlebars.Context;
 import com.github.jknack.handlebars.Handlebars;
-import com.github.jknack.handlebars.JsonNodeValueResolver;
 import com.github.jknack.handlebars.Template;
-import com.github.jknack.handlebars.context.FieldValueResolver;
 import com.github.jknack.handlebars.context.JavaBeanValueResolver;
 import com.github.jknack.handlebars.context.MapValueResolver;
-import com.github.jknack.handlebars.context.MethodValueResolver;
 import com.github.jknack.handlebars.io.ClassPathTemplateLoader;
 import com.github.jknack.handlebars.io.TemplateLoader;
+import org.eclipse.jetty.server.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.file.Path;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
 
 import static javax.servlet.http.HttpServletResponse.*;
 
 public class MainServlet extends HttpServlet {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final Template template = compileTemplate("home");
+    private static final Template playTemplate = compileTemplate("play");
 
-    private final Template template;
     private final ScreenshowConfig config;
-    private final GoogleDriveSync googleDriveSync;
+    private final Supplier<GoogleDriveSync> googleDriveSync;
+    private final Catalog catalog;
+    private final RenditionPipeline renditions;
+    private final DiskBudget budget;
+    private final ImageSender imageSender;
+    private final FilesApi filesApi = new FilesApi();
+    private final String imagePrefix;
+    private final String renditionPrefix;
+    private final SyncEvents syncEvents;
+    private final Metrics metrics;
+    private final Metrics.Histogram homeRequests;
+    private final Metrics.Histogram playRequests;
+    private final Metrics.Histogram imageRequests;
+    private final Metrics.Histogram renditionRequests;
+    private final Metrics.Histogram eventRequests;
+    private final Metrics.Histogram apiRequests;
+    private final Metrics.Histogram metricsRequests;
+    private final Metrics.Histogram syncRequests;
+    private final Metrics.Histogram otherRequests;
+    private final Metrics.Counter bytesServed;
+    private final Metrics.Counter errors;
+    private final CachedPage playPage;
+    private volatile CachedPage homePage;
+    private volatile Playlist playlist;
+    private volatile CachedPage playlistPage;
+    private volatile long firstImageMillis;
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    MainServlet(ScreenshowConfig config, GoogleDriveSync googleDriveSync) {
+    MainServlet(ScreenshowConfig config, Supplier<GoogleDriveSync> googleDriveSync, Catalog catalog,
+                RenditionPipeline renditions, DiskBudget budget, SharedServices shared) {
         this.config = config;
         this.googleDriveSync = googleDriveSync;
-        TemplateLoader loader = new ClassPathTemplateLoader("/templates", ".hbs");
-        Handlebars handlebars = new Handlebars(loader);
+        this.catalog = catalog;
+        this.imageSender = new ImageSender(config, shared.getImageCache());
+        this.renditions = renditions;
+        this.budget = budget;
+        this.imagePrefix = "/" + config.getDownloadFolder() + "/";
+        this.renditionPrefix = imagePrefix + RenditionPipeline.FOLDER + "/";
+        this.metrics = shared.getMetrics();
+        String show = config.getShowName();
+        String latency = "screenshow_http_request_duration_seconds";
+        String latencyHelp = "Time spent handling requests by route.";
+        this.homeRequests = routeHistogram(latency, latencyHelp, show, "home");
+        this.playRequests = routeHistogram(latency, latencyHelp, show, "play");
+        this.imageRequests = routeHistogram(latency, latencyHelp, show, "image");
+        this.renditionRequests = routeHistogram(latency, latencyHelp, show, "rendition");
+        this.eventRequests = routeHistogram(latency, latencyHelp, show, "events");
+        this.apiRequests = routeHistogram(latency, latencyHelp, show, "api");
+        this.metricsRequests = routeHistogram(latency, latencyHelp, show, "metrics");
+        this.syncRequests = routeHistogram(latency, latencyHelp, show, "sync");
+        this.otherRequests = routeHistogram(latency, latencyHelp, show, "other");
+        this.bytesServed = metrics.counter("screenshow_http_sent_bytes_total", "Bytes written to http clients.",
+                "show", show);
+        this.errors = metrics.counter("screenshow_http_errors_total", "Requests that failed with an exception.",
+                "show", show);
+        metrics.gauge("screenshow_catalog_files", "Files in the current catalog.",
+                () -> catalog.snapshot().getFiles().size(), "show", show);
+        metrics.gauge("screenshow_catalog_version", "Version of the current catalog.",
+                () -> catalog.snapshot().getVersion(), "show", show);
+        metrics.gauge("screenshow_startup_first_image_milliseconds",
+                "Time from process start to the first image served, 0 until then.", () -> firstImageMillis,
+                "show", show);
+        this.syncEvents = new SyncEvents(show, () -> {
+            GoogleDriveSync sync = googleDriveSync.get();
+            return null == sync ? null : sync.currentRun();
+        }, this::getPlaylist);
         try {
-            template = handlebars.compile("home");
+            this.playPage = new CachedPage(0, 0, "text/html;charset=UTF-8", playTemplate.apply(
+                    Context.newBuilder(config).resolver(JavaBeanValueResolver.INSTANCE).build()));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
+    private Metrics.Histogram routeHistogram(String name, String help, String show, String route) {
+        return metrics.histogram(name, help, Metrics.LATENCY_BUCKETS, "show", show, "route", route);
+    }
+
+    /**
+     * Strips the show's base path from the request uri, the show's own root being {@code /}.
+     */
+    private String showPath(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        String basePath = config.getBasePath();
+        if (!basePath.isEmpty() && uri.startsWith(basePath)) {
+            uri = uri.substring(basePath.length());
+        }
+        return uri.isEmpty() ? "/" : uri;
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        Metrics.Histogram route = otherRequests;
         try {
 
-            String uri = request.getRequestURI();
+            String uri = showPath(request);
             if (uri.endsWith(".heic") || uri.endsWith(".HEIC")) {
                 response.setStatus(SC_NOT_IMPLEMENTED);
-            } else if (uri.startsWith("/" + config.getDownloadFolder())) {
-                Path path = Path.of(config.getDownloadFolder(), uri.substring(uri.lastIndexOf("/")));
-                new FileInputStream(path.toFile()).transferTo(response.getOutputStream());
-                response.setStatus(SC_OK);
+            } else if (uri.startsWith(renditionPrefix)) {
+                route = renditionRequests;
+                sendRendition(request, response, uri.substring(renditionPrefix.length()));
+            } else if (uri.startsWith(imagePrefix)) {
+                route = imageRequests;
+                ScreenshowFile file = catalog.snapshot().getFile(uri.substring(imagePrefix.length()));
+                if (null == file) {
+                    response.setStatus(SC_NOT_FOUND);
+                } else {
+                    imageSender.send(request, response, file);
+                    imageServed(response, file.getFileName());
+                }
             } else if (uri.equals("/")) {
-                response.getWriter().println(getHtml());
-                response.setContentType("text/html");
-                response.setStatus(SC_OK);
+                route = homeRequests;
+                getHomePage().send(request, response);
+            } else if (uri.equals("/play")) {
+                route = playRequests;
+                sendPlayer(request, response);
+            } else if (uri.equals("/api/playlist")) {
+                route = apiRequests;
+                getPlaylistPage().send(request, response);
+            } else if (uri.equals("/api/files")) {
+                route = apiRequests;
+                filesApi.send(request, response, catalog.snapshot());
+            } else if (uri.equals("/sync/events")) {
+                route = eventRequests;
+                syncEvents.subscribe(request, response);
+            } else if (uri.equals("/metrics")) {
+                route = metricsRequests;
+                sendMetrics(response);
             } else {
                 response.setStatus(SC_NOT_FOUND);
             }
-            logger.info("Serving request uri: " + uri);
+            logger.debug("Serving request uri: {}", uri);
         } catch (Exception e) {
+            errors.increment();
             e.printStackTrace();
             response.setStatus(SC_INTERNAL_SERVER_ERROR);
             throw new IllegalStateException("unable to process", e);
+        } finally {
+            route.observeSince(start);
+            bytesServed.add(bytesWritten(request));
+        }
+    }
+
+    /**
+     * Sends the player page with the first slides announced as preload links, and pushed as well when
+     * the client is connected over HTTP/2, so the first transitions do not wait for the network.
+     */
+    private void sendPlayer(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<Playlist.Slide> slides = getPlaylist().getSlides();
+        List<Playlist.Slide> upcoming = slides.subList(0, Math.min(slides.size(), Math.max(0, config.getPreloadCount())));
+        Request base = Request.getBaseRequest(request);
+        boolean push = null != base && base.isPushSupported();
+        for (Playlist.Slide slide : upcoming) {
+            response.addHeader("Link", "<" + slide.getUrl() + ">; rel=preload; as=image");
+            if (push) {
+                base.getPushBuilder().path(slide.getUrl()).push();
+            }
+        }
+        playPage.send(request, response);
+    }
+
+    /**
+     * Returns the playlist of the current catalog, building it again only when the catalog moved.
+     */
+    Playlist getPlaylist() {
+        Catalog.Snapshot snapshot = catalog.snapshot();
+        Playlist current = playlist;
+        if (null == current || current.getVersion() != snapshot.getVersion()) {
+            current = Playlist.build(snapshot, config);
+            playlist = current;
+        }
+        return current;
+    }
+
+    private CachedPage getPlaylistPage() throws IOException {
+        Playlist current = getPlaylist();
+        CachedPage page = playlistPage;
+        if (null == page || !page.isCurrent(current.getVersion(), 0)) {
+            page = new CachedPage(current.getVersion(), 0, "application/json", current.toJson(config.getPreloadCount()));
+            playlistPage = page;
+        }
+        return page;
+    }
+
+    private void sendMetrics(HttpServletResponse response) throws IOException {
+        response.setStatus(SC_OK);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(metrics.write());
+    }
+
+    private static long bytesWritten(HttpServletRequest request) {
+        Request base = Request.getBaseRequest(request);
+        return null == base ? 0 : base.getResponse().getHttpChannel().getBytesWritten();
+    }
+
+    private void sendRendition(HttpServletRequest request, HttpServletResponse response, String path)
+            throws IOException {
+        int slash = path.indexOf('/');
+        String kind = slash < 0 ? "" : path.substring(0, slash);
+        String checksum = slash < 0 ? null : RenditionPipeline.checksumOf(path.substring(slash + 1));
+        if (null == checksum || !renditions.isRendered(checksum)
+                || !(kind.equals(RenditionPipeline.THUMB) || kind.equals(RenditionPipeline.DISPLAY))) {
+            response.setStatus(SC_NOT_FOUND);
+            return;
+        }
+        imageSender.sendRendition(request, response, renditions.file(kind, checksum), checksum + "-" + kind);
+        if (kind.equals(RenditionPipeline.DISPLAY)) {
+            imageServed(response, checksum);
+        }
+    }
+
+    /**
+     * Records the display for the download budget, and how long after process start the first image
+     * went out, which is what a viewer waits for after the Pi boots.
+     */
+    private void imageServed(HttpServletResponse response, String key) {
+        if (response.getStatus() >= 400) {
+            return;
+        }
+        budget.displayed(key);
+        if (0 != firstImageMillis) {
+            return;
+        }
+        synchronized (this) {
+            if (0 != firstImageMillis) {
+                return;
+            }
+            firstImageMillis = Math.max(1, ManagementFactory.getRuntimeMXBean().getUptime());
+        }
+        if (firstImageMillis > config.getFirstImageTargetMillis()) {
+            logger.warn("First image served " + firstImageMillis + "ms after start, the target is "
+                    + config.getFirstImageTargetMillis() + "ms.");
+        } else {
+            logger.info("First image served " + firstImageMillis + "ms after start.");
         }
     }
 
     protected void doPut(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        PrintWriter writer = response.getWriter();
-        String req = new String(request.getInputStream().readAllBytes());
-        if (req.equals("sync")) {
-            logger.info("manual sync requested from " + request.getRemoteAddr());
-            googleDriveSync.downloadFromFolder();
-            writer.print("{\"message\":\"Sync Requested.\"}");
+        long start = System.nanoTime();
+        try {
+            PrintWriter writer = response.getWriter();
+            String req = new String(request.getInputStream().readAllBytes());
+            if (req.equals("sync")) {
+                logger.info("manual sync requested from " + request.getRemoteAddr());
+                GoogleDriveSync sync = googleDriveSync.get();
+                if (null == sync) {
+                    response.setStatus(SC_SERVICE_UNAVAILABLE);
+                    response.setHeader("Retry-After", "30");
+                    writer.print("{\"message\":\"Not connected to google drive yet.\"}");
+                    return;
+                }
+                SyncRun run = sync.requestSync();
+                writer.print("{\"message\":\"Sync Requested.\",\"syncId\":" + run.getId() + "}");
+            }
+            response.setContentType("text/plain");
+        } finally {
+            syncRequests.observeSince(start);
         }
-        response.setContentType("text/plain");
     }
 
-    private String getHtml() throws Exception {
-        return template.apply(getContext());
+    @Override
+    public void destroy() {
+        syncEvents.close();
+    }
+
+    private static Template compileTemplate(String name) {
+        TemplateLoader loader = new ClassPathTemplateLoader("/templates", ".hbs");
+        try {
+            return new Handlebars(loader).compile(name);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the home page rendered from the current catalog, rendering it again only when the
+     * catalog version or the quarantined files moved.
+     */
+    private CachedPage getHomePage() throws IOException {
+        Catalog.Snapshot snapshot = catalog.snapshot();
+        long statusVersion = statusVersion();
+        CachedPage page = homePage;
+        if (null != page && page.isCurrent(snapshot.getVersion(), statusVersion)) {
+            return page;
+        }
+        synchronized (this) {
+            page = homePage;
+            if (null == page || !page.isCurrent(snapshot.getVersion(), statusVersion)) {
+                page = renderHomePage(snapshot);
+                homePage = page;
+            }
+        }
+        return page;
+    }
+
+    CachedPage renderHomePage(Catalog.Snapshot snapshot) throws IOException {
+        long statusVersion = statusVersion();
+        GoogleDriveSync sync = googleDriveSync.get();
+        List<DownloadFailure> quarantined = null == sync ? Collections.emptyList() : sync.quarantined();
+        return new CachedPage(snapshot.getVersion(), statusVersion, "text/html;charset=UTF-8",
+                template.apply(getContext(snapshot, quarantined)));
+    }
+
+    private long statusVersion() {
+        GoogleDriveSync sync = googleDriveSync.get();
+        return null == sync ? -1 : sync.getQuarantineVersion();
     }
 
-    private synchronized Context getContext() {
-        config.setFiles(googleDriveSync.getFiles());
+    private Context getContext(Catalog.Snapshot snapshot, List<DownloadFailure> quarantined) {
         return Context.newBuilder(config)
-                .resolver(JsonNodeValueResolver.INSTANCE,
-                        JavaBeanValueResolver.INSTANCE,
-                        FieldValueResolver.INSTANCE,
-                        MapValueResolver.INSTANCE,
-                        MethodValueResolver.INSTANCE)
+                .combine("files", snapshot.getFiles())
+                .combine("quarantined", quarantined)
+                .resolver(JavaBeanValueResolver.INSTANCE, MapValueResolver.INSTANCE)
                 .build();
     }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A small registry of counters, gauges and histograms written out in the Prometheus text format.
+ * Series are created once up front and handed to the code that records them, so recording is just a
+ * {@link LongAdder} increment and never allocates.
+ */
+class Metrics {
+    /**
+     * Bucket bounds in seconds for request and Drive call latency.
+     */
+    static final double[] LATENCY_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    /**
+     * Bucket bounds in seconds for whole syncs.
+     */
+    static final double[] SYNC_BUCKETS = {1, 5, 15, 30, 60, 120, 300, 600, 1800, 3600};
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    synchronized Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter(labelString(labels));
+        family(name, help, "counter").series.add(counter);
+        return counter;
+    }
+
+    synchronized Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        Histogram histogram = new Histogram(labels, buckets);
+        family(name, help, "histogram").series.add(histogram);
+        return histogram;
+    }
+
+    synchronized void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").series.add(new Gauge(labelString(labels), value));
+    }
+
+    synchronized String write() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Series series : family.series) {
+                series.write(family.name, out);
+            }
+        }
+        return out.toString();
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String labelString(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private interface Series {
+        void write(String name, StringBuilder out);
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Series> series = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    static class Counter implements Series {
+        private final String labels;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String labels) {
+            this.labels = labels;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(String name, StringBuilder out) {
+            out.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    private static class Gauge implements Series {
+        private final String labels;
+        private final LongSupplier value;
+
+        Gauge(String labels, LongSupplier value) {
+            this.labels = labels;
+            this.value = value;
+        }
+
+        @Override
+        public void write(String name, StringBuilder out) {
+            out.append(name).append(labels).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    /**
+     * Fixed bucket histogram of durations. Observations are recorded in nanoseconds and written out in
+     * seconds.
+     */
+    static class Histogram implements Series {
+        private final String[] labels;
+        private final double[] bounds;
+        private final long[] boundNanos;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(String[] labels, double[] bounds) {
+            this.labels = labels;
+            this.bounds = bounds;
+            this.boundNanos = new long[bounds.length];
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                boundNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observeNanos(long nanos) {
+            for (int i = 0; i < boundNanos.length; i++) {
+                if (nanos <= boundNanos[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time since {@code startNanos}, a value taken from {@link System#nanoTime()}.
+         */
+        void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public void write(String name, StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket").append(labelString(withLe(format(bounds[i]))))
+                        .append(' ').append(cumulative).append('\n');
+            }
+            long total = count.sum();
+            out.append(name).append("_bucket").append(labelString(withLe("+Inf"))).append(' ').append(total).append('\n');
+            String plain = labelString(labels);
+            out.append(name).append("_sum").append(plain).append(' ')
+                    .append(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+            out.append(name).append("_count").append(plain).append(' ').append(total).append('\n');
+        }
+
+        private String[] withLe(String le) {
+            String[] all = new String[labels.length + 2];
+            System.arraycopy(labels, 0, all, 0, labels.length);
+            all[labels.length] = "le";
+            all[labels.length + 1] = le;
+            return all;
+        }
+    }
+}
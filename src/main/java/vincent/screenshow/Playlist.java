@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The order in which the player shows the images of a catalog snapshot. Every slide has a sort key,
+ * its name or a seeded hash of it, so adding or removing a file never moves the other slides and the
+ * player can apply a change in place instead of starting over.
+ */
+class Playlist {
+    static final String ORDER_NAME = "name";
+    static final String ORDER_SHUFFLE = "shuffle";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final long version;
+    private final List<Slide> slides;
+    private final Map<String, Slide> slidesByName;
+
+    private Playlist(long version, List<Slide> slides) {
+        this.version = version;
+        this.slides = slides;
+        this.slidesByName = new HashMap<>(slides.size() * 2);
+        for (Slide slide : slides) {
+            slidesByName.put(slide.name, slide);
+        }
+    }
+
+    static Playlist build(Catalog.Snapshot snapshot, ScreenshowConfig config) {
+        boolean shuffle = ORDER_SHUFFLE.equals(config.getPlayOrder());
+        long durationMillis = Math.max(1, config.getSlideSeconds()) * 1000L;
+        List<Slide> slides = new ArrayList<>(snapshot.getFiles().size());
+        for (ScreenshowFile file : snapshot.getFiles()) {
+            if (!file.getContentType().startsWith("image/")) {
+                continue;
+            }
+            String key = shuffle ? shuffleKey(config.getPlaySeed(), file.getFileName()) : file.getFileName();
+            slides.add(new Slide(file.getFileName(), file.getDisplayUrl(), key, durationMillis));
+        }
+        if (shuffle) {
+            slides.sort(Comparator.comparing((Slide slide) -> slide.key).thenComparing(slide -> slide.name));
+        }
+        return new Playlist(snapshot.getVersion(), Collections.unmodifiableList(slides));
+    }
+
+    /**
+     * Fixed width hex of a seeded 64 bit hash of the name, so the keys sort the same in Java and in
+     * the browser.
+     */
+    static String shuffleKey(long seed, String name) {
+        long hash = seed ^ 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return String.format(Locale.ROOT, "%016x", hash);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    List<Slide> getSlides() {
+        return slides;
+    }
+
+    /**
+     * The whole playlist: {@code {"version", "preload", "slides": [...]}}.
+     */
+    String toJson(int preload) throws IOException {
+        StringWriter out = new StringWriter(slides.size() * 128 + 64);
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeNumberField("version", version);
+            json.writeNumberField("preload", preload);
+            json.writeArrayFieldStart("slides");
+            for (Slide slide : slides) {
+                slide.write(json);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        return out.toString();
+    }
+
+    /**
+     * What changed since an earlier playlist: {@code {"from", "version", "changed": [...], "removed": [...]}}.
+     * Changed slides are new ones and those whose url moved, for example once a rendition is ready.
+     */
+    String diffJson(Playlist previous) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeNumberField("from", previous.version);
+            json.writeNumberField("version", version);
+            json.writeArrayFieldStart("changed");
+            for (Slide slide : slides) {
+                Slide before = previous.slidesByName.get(slide.name);
+                if (null == before || !before.url.equals(slide.url) || !before.key.equals(slide.key)) {
+                    slide.write(json);
+                }
+            }
+            json.writeEndArray();
+            json.writeArrayFieldStart("removed");
+            for (Slide slide : previous.slides) {
+                if (!slidesByName.containsKey(slide.name)) {
+                    json.writeString(slide.name);
+                }
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        return out.toString();
+    }
+
+    static class Slide {
+        private final String name;
+        private final String url;
+        private final String key;
+        private final long durationMillis;
+
+        Slide(String name, String url, String key, long durationMillis) {
+            this.name = name;
+            this.url = url;
+            this.key = key;
+            this.durationMillis = durationMillis;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        private void write(JsonGenerator json) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("name", name);
+            json.writeStringField("url", url);
+            json.writeStringField("key", key);
+            json.writeNumberField("duration", durationMillis);
+            json.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket shared by all download threads, so the sync as a whole stays under the configured
+ * rate and leaves room for the slideshow. The rate follows the configured time of day windows. It
+ * also measures the rate actually achieved, which drives the download chunk size.
+ */
+class RateLimiter {
+    private static final long MIN_CHUNK = 256 * 1024;
+    private static final long MAX_CHUNK = 8 * 1024 * 1024;
+    private static final long CHUNK_SECONDS = 2;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long defaultRate;
+    private final LocalTime[] windowStarts;
+    private final LocalTime[] windowEnds;
+    private final long[] windowRates;
+
+    private long rate;
+    private long rateCheckedAt;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    private long measuredBytes;
+    private long measureStart = System.nanoTime();
+    private volatile long measuredRate;
+    private volatile long lastMeasured;
+
+    RateLimiter(ScreenshowConfig config) {
+        this.defaultRate = config.getDownloadBytesPerSecond();
+        List<RateWindow> windows = config.getDownloadRateWindows();
+        int count = null == windows ? 0 : windows.size();
+        this.windowStarts = new LocalTime[count];
+        this.windowEnds = new LocalTime[count];
+        this.windowRates = new long[count];
+        for (int i = 0; i < count; i++) {
+            windowStarts[i] = LocalTime.parse(windows.get(i).getFrom());
+            windowEnds[i] = LocalTime.parse(windows.get(i).getTo());
+            windowRates[i] = windows.get(i).getBytesPerSecond();
+        }
+        this.rate = rateAt(LocalTime.now());
+        this.rateCheckedAt = refilledAt;
+        this.tokens = rate;
+    }
+
+    /**
+     * Waits until {@code bytes} may be written. Tokens are reserved before sleeping, so threads queue
+     * up behind each other instead of all waking at once.
+     */
+    void acquire(int bytes) throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (now - rateCheckedAt >= SECOND) {
+                rate = rateAt(LocalTime.now());
+                rateCheckedAt = now;
+            }
+            if (rate <= 0) {
+                tokens = 0;
+                refilledAt = now;
+                return;
+            }
+            // At most one second worth of burst.
+            tokens = Math.min(rate, tokens + (now - refilledAt) * (double) rate / SECOND);
+            refilledAt = now;
+            tokens -= bytes;
+            wait = tokens >= 0 ? 0 : (long) (-tokens * SECOND / rate);
+        }
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Records bytes that went to disk, for the measured rate.
+     */
+    synchronized void record(int bytes) {
+        long now = System.nanoTime();
+        measuredBytes += bytes;
+        long elapsed = now - measureStart;
+        if (elapsed >= SECOND) {
+            long current = measuredBytes * SECOND / elapsed;
+            measuredRate = 0 == lastMeasured || now - lastMeasured > 5 * SECOND
+                    ? current
+                    : (measuredRate + current) / 2;
+            lastMeasured = now;
+            measuredBytes = 0;
+            measureStart = now;
+        }
+    }
+
+    /**
+     * Download rate over the last seconds, 0 when nothing was downloaded recently.
+     */
+    long getMeasuredRate() {
+        return System.nanoTime() - lastMeasured > 5 * SECOND ? 0 : measuredRate;
+    }
+
+    /**
+     * The limit in force right now, 0 when unlimited.
+     */
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Chunk size for the next download: about two seconds worth at the measured rate, so slow links get
+     * small resumable requests and fast links fewer round trips.
+     */
+    int chunkSize() {
+        long measured = getMeasuredRate();
+        if (measured <= 0) {
+            return 1024 * 1024;
+        }
+        long chunk = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, measured * CHUNK_SECONDS));
+        return (int) (chunk / MIN_CHUNK * MIN_CHUNK);
+    }
+
+    private long rateAt(LocalTime time) {
+        for (int i = 0; i < windowRates.length; i++) {
+            LocalTime start = windowStarts[i];
+            LocalTime end = windowEnds[i];
+            boolean open = start.isBefore(end)
+                    ? !time.isBefore(start) && time.isBefore(end)
+                    : !time.isBefore(start) || time.isBefore(end);
+            if (open) {
+                return windowRates[i];
+            }
+        }
+        return defaultRate;
+    }
+}
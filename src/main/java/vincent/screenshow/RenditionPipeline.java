@@ -0,0 +1,219 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Produces a thumbnail and a screen sized JPEG for every downloaded image on a small background pool.
+ * Renditions are stored under {@code renditions/<kind>/<md5>.jpg} in the download folder, so a
+ * rendition is only generated again when the checksum of its original changes. The pool is shared by
+ * every show and owned by {@link SharedServices}.
+ */
+class RenditionPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    static final String FOLDER = "renditions";
+    static final String THUMB = "thumb";
+    static final String DISPLAY = "display";
+
+    private final ScreenshowConfig config;
+    private final File thumbFolder;
+    private final File displayFolder;
+    private final Set<String> rendered = ConcurrentHashMap.newKeySet();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+    private final ExecutorService pool;
+    private volatile Runnable onRendered = () -> {
+    };
+
+    RenditionPipeline(ScreenshowConfig config, ExecutorService pool) throws IOException {
+        this.config = config;
+        File folder = new File(config.getDownloadFolder(), FOLDER);
+        this.thumbFolder = new File(folder, THUMB);
+        this.displayFolder = new File(folder, DISPLAY);
+        Files.createDirectories(thumbFolder.toPath());
+        Files.createDirectories(displayFolder.toPath());
+        String[] thumbs = thumbFolder.list();
+        if (null != thumbs) {
+            for (String name : thumbs) {
+                String checksum = checksumOf(name);
+                if (null != checksum && new File(displayFolder, name).isFile()) {
+                    rendered.add(checksum);
+                }
+            }
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Called whenever new renditions became available.
+     */
+    void setOnRendered(Runnable onRendered) {
+        this.onRendered = onRendered;
+    }
+
+    boolean isRendered(String checksum) {
+        return null != checksum && rendered.contains(checksum);
+    }
+
+    File file(String kind, String checksum) {
+        return new File(THUMB.equals(kind) ? thumbFolder : displayFolder, checksum + ".jpg");
+    }
+
+    /**
+     * Returns the checksum named by a rendition file name, or null when the name is not one of ours.
+     */
+    static String checksumOf(String fileName) {
+        if (!fileName.matches("[0-9a-f]{32}\\.jpg")) {
+            return null;
+        }
+        return fileName.substring(0, 32);
+    }
+
+    /**
+     * Queues rendition of an original unless it is already rendered, queued or known not to be an image.
+     */
+    void submit(String checksum, File original) {
+        if (null == checksum || rendered.contains(checksum) || unsupported.contains(checksum)
+                || !pending.add(checksum)) {
+            return;
+        }
+        pool.execute(() -> {
+            try {
+                if (render(checksum, original)) {
+                    rendered.add(checksum);
+                    onRendered.run();
+                } else {
+                    unsupported.add(checksum);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Unable to render " + original.getAbsolutePath(), e);
+            } finally {
+                pending.remove(checksum);
+            }
+        });
+    }
+
+    /**
+     * Deletes renditions whose original is no longer part of the folder. Renders still running, and
+     * their temp files, are left alone.
+     */
+    void retain(Set<String> checksums) {
+        for (File folder : new File[]{thumbFolder, displayFolder}) {
+            File[] files = folder.listFiles();
+            if (null == files) {
+                continue;
+            }
+            for (File file : files) {
+                String checksum = checksumOf(file.getName());
+                if (null != checksum && !checksums.contains(checksum) && !pending.contains(checksum)) {
+                    rendered.remove(checksum);
+                    if (file.delete()) {
+                        logger.info("Deleting unused rendition: {}", file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean render(String checksum, File original) throws IOException {
+        BufferedImage display;
+        try (ImageInputStream input = ImageIO.createImageInputStream(original)) {
+            if (null == input) {
+                return false;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // Decode at a reduced resolution when the original is much bigger than the screen, a
+                // full 12MP decode would not fit comfortably in the Pi's heap.
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.min(width / config.getDisplayWidth(),
+                        height / config.getDisplayHeight()));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                display = scale(reader.read(0, param), config.getDisplayWidth(), config.getDisplayHeight());
+            } finally {
+                reader.dispose();
+            }
+        }
+        BufferedImage thumb = scale(display, config.getThumbnailSize(), config.getThumbnailSize());
+        write(display, file(DISPLAY, checksum));
+        write(thumb, file(THUMB, checksum));
+        logger.info("Rendered " + original.getName() + " as " + checksum);
+        return true;
+    }
+
+    private static BufferedImage scale(BufferedImage source, int maxWidth, int maxHeight) {
+        double factor = Math.min(1.0, Math.min((double) maxWidth / source.getWidth(),
+                (double) maxHeight / source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * factor));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static void write(BufferedImage image, File target) throws IOException {
+        Path temp = target.toPath().resolveSibling(target.getName() + ".tmp");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(temp.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.85f);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        Files.move(temp, target.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+}
@@ -15,6 +15,9 @@
  */
 package vincent.screenshow;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,9 +26,52 @@ public class ScreenshowConfig {
     private int port;
     private long startDelay;
     private String downloadFolder;
-    private String downloadFrequency;
+    private long syncMinMinutes = 2;
+    private long syncMaxMinutes = 60;
+    private double syncJitter = 0.2;
     private String googleFolderId;
-    private List<ScreenshowFile> files = new ArrayList<>();
+    private int maxConcurrentDownloads = 4;
+    private boolean prefetchNextPage = true;
+    private boolean incrementalSync = true;
+    private int thumbnailSize = 320;
+    private int displayWidth = 1920;
+    private int displayHeight = 1080;
+    private int renditionThreads = 1;
+    private long partialMaxAgeHours = 72;
+    private long downloadBytesPerSecond;
+    private long firstImageTargetMillis = 10000;
+    private int downloadAttempts = 4;
+    private int quarantineAfterFailures = 3;
+    private long quarantineHours = 24;
+    private List<RateWindow> downloadRateWindows = new ArrayList<>();
+    private String playOrder = Playlist.ORDER_NAME;
+    private long playSeed;
+    private int slideSeconds = 10;
+    private int preloadCount = 3;
+    private long imageCacheBytes = 64L * 1024 * 1024;
+    private long downloadBudgetBytes;
+    private String budgetPriority = DiskBudget.NEWEST;
+    private String driveRootUrl;
+    private boolean virtualThreads;
+    private List<ShowConfig> shows = new ArrayList<>();
+    @JsonIgnore
+    private String showName = "default";
+    @JsonIgnore
+    private String basePath = "";
+
+    /**
+     * The settings for one of the configured shows: a copy of this configuration with the show's folders,
+     * served below {@code /show/<name>}.
+     */
+    ScreenshowConfig forShow(ShowConfig show) {
+        ScreenshowConfig copy = new ObjectMapper().convertValue(this, ScreenshowConfig.class);
+        copy.setShows(new ArrayList<>());
+        copy.showName = show.getName();
+        copy.basePath = "/show/" + show.getName();
+        copy.setGoogleFolderId(show.getGoogleFolderId());
+        copy.setDownloadFolder(show.getDownloadFolder());
+        return copy;
+    }
 
     public int getPort() {
         return port;
@@ -51,12 +97,37 @@ public class ScreenshowConfig {
         this.downloadFolder = downloadFolder;
     }
 
-    public String getDownloadFrequency() {
-        return downloadFrequency;
+    /**
+     * Time between syncs right after a sync found changes.
+     */
+    public long getSyncMinMinutes() {
+        return syncMinMinutes;
+    }
+
+    public void setSyncMinMinutes(long syncMinMinutes) {
+        this.syncMinMinutes = syncMinMinutes;
+    }
+
+    /**
+     * Longest time between syncs, reached by doubling the interval after every sync without changes.
+     */
+    public long getSyncMaxMinutes() {
+        return syncMaxMinutes;
     }
 
-    public void setDownloadFrequency(String downloadFrequency) {
-        this.downloadFrequency = downloadFrequency;
+    public void setSyncMaxMinutes(long syncMaxMinutes) {
+        this.syncMaxMinutes = syncMaxMinutes;
+    }
+
+    /**
+     * Fraction by which each interval is randomly lengthened or shortened.
+     */
+    public double getSyncJitter() {
+        return syncJitter;
+    }
+
+    public void setSyncJitter(double syncJitter) {
+        this.syncJitter = syncJitter;
     }
 
     public String getGoogleFolderId() {
@@ -67,12 +138,256 @@ public class ScreenshowConfig {
         this.googleFolderId = googleFolderId;
     }
 
-    public List<ScreenshowFile> getFiles() {
-        return files;
+    public int getMaxConcurrentDownloads() {
+        return maxConcurrentDownloads;
+    }
+
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+    }
+
+    public boolean isPrefetchNextPage() {
+        return prefetchNextPage;
+    }
+
+    public void setPrefetchNextPage(boolean prefetchNextPage) {
+        this.prefetchNextPage = prefetchNextPage;
+    }
+
+    public boolean isIncrementalSync() {
+        return incrementalSync;
+    }
+
+    public void setIncrementalSync(boolean incrementalSync) {
+        this.incrementalSync = incrementalSync;
+    }
+
+    public int getThumbnailSize() {
+        return thumbnailSize;
+    }
+
+    public void setThumbnailSize(int thumbnailSize) {
+        this.thumbnailSize = thumbnailSize;
+    }
+
+    public int getDisplayWidth() {
+        return displayWidth;
+    }
+
+    public void setDisplayWidth(int displayWidth) {
+        this.displayWidth = displayWidth;
+    }
+
+    public int getDisplayHeight() {
+        return displayHeight;
+    }
+
+    public void setDisplayHeight(int displayHeight) {
+        this.displayHeight = displayHeight;
+    }
+
+    public int getRenditionThreads() {
+        return renditionThreads;
+    }
+
+    public void setRenditionThreads(int renditionThreads) {
+        this.renditionThreads = renditionThreads;
+    }
+
+    public long getPartialMaxAgeHours() {
+        return partialMaxAgeHours;
+    }
+
+    public void setPartialMaxAgeHours(long partialMaxAgeHours) {
+        this.partialMaxAgeHours = partialMaxAgeHours;
+    }
+
+    /**
+     * Download rate limit in bytes per second outside of any rate window, 0 for no limit.
+     */
+    public long getDownloadBytesPerSecond() {
+        return downloadBytesPerSecond;
+    }
+
+    public void setDownloadBytesPerSecond(long downloadBytesPerSecond) {
+        this.downloadBytesPerSecond = downloadBytesPerSecond;
+    }
+
+    /**
+     * Attempts at each Drive call and download within one sync before giving up on it.
+     */
+    public int getDownloadAttempts() {
+        return downloadAttempts;
+    }
+
+    public void setDownloadAttempts(int downloadAttempts) {
+        this.downloadAttempts = downloadAttempts;
+    }
+
+    /**
+     * Failed syncs after which a file is quarantined.
+     */
+    public int getQuarantineAfterFailures() {
+        return quarantineAfterFailures;
+    }
+
+    public void setQuarantineAfterFailures(int quarantineAfterFailures) {
+        this.quarantineAfterFailures = quarantineAfterFailures;
+    }
+
+    /**
+     * How long a quarantined file is left out of syncs before it is tried again.
+     */
+    public long getQuarantineHours() {
+        return quarantineHours;
+    }
+
+    public void setQuarantineHours(long quarantineHours) {
+        this.quarantineHours = quarantineHours;
+    }
+
+    /**
+     * Time from process start to the first image served that is considered acceptable after a reboot.
+     */
+    public long getFirstImageTargetMillis() {
+        return firstImageTargetMillis;
+    }
+
+    public void setFirstImageTargetMillis(long firstImageTargetMillis) {
+        this.firstImageTargetMillis = firstImageTargetMillis;
+    }
+
+    /**
+     * Times of day with their own download rate limit, the first matching window wins.
+     */
+    public List<RateWindow> getDownloadRateWindows() {
+        return downloadRateWindows;
+    }
+
+    public void setDownloadRateWindows(List<RateWindow> downloadRateWindows) {
+        this.downloadRateWindows = downloadRateWindows;
+    }
+
+    /**
+     * Order of the slides on the player page, {@code name} or {@code shuffle}.
+     */
+    public String getPlayOrder() {
+        return playOrder;
+    }
+
+    public void setPlayOrder(String playOrder) {
+        this.playOrder = playOrder;
+    }
+
+    /**
+     * Seed of the shuffle, the same seed gives the same order on every screen and after restarts.
+     */
+    public long getPlaySeed() {
+        return playSeed;
+    }
+
+    public void setPlaySeed(long playSeed) {
+        this.playSeed = playSeed;
+    }
+
+    public int getSlideSeconds() {
+        return slideSeconds;
+    }
+
+    public void setSlideSeconds(int slideSeconds) {
+        this.slideSeconds = slideSeconds;
+    }
+
+    /**
+     * Number of upcoming slides the player keeps downloaded and decoded ahead of time.
+     */
+    public int getPreloadCount() {
+        return preloadCount;
+    }
+
+    public void setPreloadCount(int preloadCount) {
+        this.preloadCount = preloadCount;
+    }
+
+    /**
+     * Memory for recently served images, shared by all shows, 0 to always read from disk.
+     */
+    public long getImageCacheBytes() {
+        return imageCacheBytes;
+    }
+
+    public void setImageCacheBytes(long imageCacheBytes) {
+        this.imageCacheBytes = imageCacheBytes;
+    }
+
+    /**
+     * Most bytes of originals kept in the download folder, 0 for no limit. Renditions are not counted.
+     */
+    public long getDownloadBudgetBytes() {
+        return downloadBudgetBytes;
+    }
+
+    public void setDownloadBudgetBytes(long downloadBudgetBytes) {
+        this.downloadBudgetBytes = downloadBudgetBytes;
+    }
+
+    /**
+     * Which originals are kept when the budget is reached: {@code newest} by Drive modified time, or
+     * {@code displayed} to also keep what was on screen recently.
+     */
+    public String getBudgetPriority() {
+        return budgetPriority;
+    }
+
+    public void setBudgetPriority(String budgetPriority) {
+        this.budgetPriority = budgetPriority;
+    }
+
+    /**
+     * Root url of a server speaking the Drive v3 api to use instead of Google, without OAuth. Meant for
+     * load tests against a fake Drive; null for Google Drive.
+     */
+    public String getDriveRootUrl() {
+        return driveRootUrl;
+    }
+
+    public void setDriveRootUrl(String driveRootUrl) {
+        this.driveRootUrl = driveRootUrl;
+    }
+
+    /**
+     * Runs http requests, syncs and downloads on virtual threads, with the concurrency limits kept by
+     * semaphores. Needs a JDK with virtual threads, otherwise platform thread pools are used.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Additional shows synced by the same process, next to the one given on the command line.
+     */
+    public List<ShowConfig> getShows() {
+        return shows;
+    }
+
+    public void setShows(List<ShowConfig> shows) {
+        this.shows = shows;
+    }
+
+    @JsonIgnore
+    public String getShowName() {
+        return showName;
     }
 
-    public void setFiles(List<ScreenshowFile> files) {
-        this.files.clear();
-        this.files.addAll(files);
+    /**
+     * Path the show is served below, empty for the show given on the command line.
+     */
+    @JsonIgnore
+    public String getBasePath() {
+        return basePath;
     }
 }
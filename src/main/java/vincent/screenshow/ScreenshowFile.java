@@ -15,22 +15,52 @@
  */
 package vincent.screenshow;
 
+import java.util.Date;
+import java.util.Objects;
+
 public class ScreenshowFile {
 
-    private String imageUrl;
-    private String fileDate;
-    private String fileName;
+    private final String imageUrl;
+    private final String thumbUrl;
+    private final String displayUrl;
+    private final String fileDate;
+    private final String fileName;
+    private final long lastModified;
+    private final long length;
+    private final String etag;
+    private final String contentType;
 
-    public ScreenshowFile(String imageUrl, String fileDate, String fileName) {
+    public ScreenshowFile(String imageUrl, String thumbUrl, String displayUrl, long lastModified, long length,
+                          String fileName, String etag, String contentType) {
         this.imageUrl = imageUrl;
-        this.fileDate = fileDate;
+        this.thumbUrl = thumbUrl;
+        this.displayUrl = displayUrl;
+        this.fileDate = new Date(lastModified).toString();
         this.fileName = fileName;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.etag = etag;
+        this.contentType = contentType;
     }
 
     public String getImageUrl() {
         return imageUrl;
     }
 
+    /**
+     * Url of the thumbnail, or of the original until the thumbnail has been rendered.
+     */
+    public String getThumbUrl() {
+        return thumbUrl;
+    }
+
+    /**
+     * Url of the screen sized rendition, or of the original until it has been rendered.
+     */
+    public String getDisplayUrl() {
+        return displayUrl;
+    }
+
     public String getFileDate() {
         return fileDate;
     }
@@ -38,4 +68,46 @@ public class ScreenshowFile {
     public String getFileName() {
         return fileName;
     }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Entity tag without the surrounding quotes, the Drive md5 checksum when known.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ScreenshowFile)) {
+            return false;
+        }
+        ScreenshowFile that = (ScreenshowFile) o;
+        return lastModified == that.lastModified
+                && length == that.length
+                && imageUrl.equals(that.imageUrl)
+                && thumbUrl.equals(that.thumbUrl)
+                && displayUrl.equals(that.displayUrl)
+                && fileName.equals(that.fileName)
+                && etag.equals(that.etag);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(imageUrl, thumbUrl, displayUrl, fileName, lastModified, length, etag);
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads, limits and metrics shared by every show in the process, so adding a show costs its catalog
+ * and manifest but no extra pools. Syncs of different shows run one after the other on the sync
+ * thread and share the download pool, the bandwidth limit and the Drive back-off.
+ */
+class SharedServices {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+
+    private final Metrics metrics;
+    private final ExecutorService downloadPool;
+    private final ExecutorService listingPool;
+    private final ExecutorService syncPool;
+    private final ExecutorService renditionPool;
+    private final ScheduledExecutorService timer;
+    private final RateLimiter rateLimiter;
+    private final DriveRetry driveRetry;
+    private final ImageCache imageCache;
+
+    final Metrics.Histogram syncDuration;
+    final Metrics.Counter syncErrors;
+    final Metrics.Counter filesDownloaded;
+    final Metrics.Counter bytesDownloaded;
+    final Metrics.Counter downloadErrors;
+    final Metrics.Histogram listLatency;
+    final Metrics.Histogram changesLatency;
+    final Metrics.Histogram fileLatency;
+    final Metrics.Histogram getLatency;
+
+    SharedServices(ScreenshowConfig config) {
+        this.metrics = new Metrics();
+        boolean virtual = useVirtualThreads(config);
+        this.downloadPool = pool(virtual, "screenshow-download", config.getMaxConcurrentDownloads());
+        this.listingPool = pool(virtual, "screenshow-listing", 1);
+        this.syncPool = pool(virtual, "screenshow-sync", 1);
+        // Renditions are cpu bound and stay on low priority platform threads.
+        int renditionThreads = Math.max(1, config.getRenditionThreads());
+        ThreadFactory renditionThreadFactory = namedThreads("screenshow-rendition");
+        this.renditionPool = new ThreadPoolExecutor(renditionThreads, renditionThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = renditionThreadFactory.newThread(runnable);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+        this.timer = Executors.newSingleThreadScheduledExecutor(namedThreads("screenshow-timer"));
+        this.rateLimiter = new RateLimiter(config);
+        this.driveRetry = new DriveRetry(config.getDownloadAttempts(), metrics);
+        this.imageCache = new ImageCache(config, metrics);
+
+        this.syncDuration = metrics.histogram("screenshow_sync_duration_seconds", "Time taken by whole syncs.",
+                Metrics.SYNC_BUCKETS);
+        this.syncErrors = metrics.counter("screenshow_sync_errors_total", "Syncs that ended with an error.");
+        this.filesDownloaded = metrics.counter("screenshow_sync_downloaded_files_total", "Files downloaded by syncs.");
+        this.bytesDownloaded = metrics.counter("screenshow_sync_downloaded_bytes_total", "Bytes downloaded by syncs.");
+        this.downloadErrors = metrics.counter("screenshow_download_errors_total", "Downloads that failed.");
+        metrics.gauge("screenshow_download_rate_bytes_per_second", "Measured download rate.",
+                rateLimiter::getMeasuredRate);
+        metrics.gauge("screenshow_download_rate_limit_bytes_per_second", "Download rate limit in force, 0 for none.",
+                rateLimiter::getRate);
+        String drive = "screenshow_drive_request_duration_seconds";
+        String driveHelp = "Latency of google drive api calls.";
+        this.listLatency = metrics.histogram(drive, driveHelp, Metrics.LATENCY_BUCKETS, "call", "list");
+        this.changesLatency = metrics.histogram(drive, driveHelp, Metrics.LATENCY_BUCKETS, "call", "changes");
+        this.fileLatency = metrics.histogram(drive, driveHelp, Metrics.LATENCY_BUCKETS, "call", "file");
+        this.getLatency = metrics.histogram(drive, driveHelp, Metrics.SYNC_BUCKETS, "call", "get");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        metrics.gauge("screenshow_jvm_threads", "Live platform threads.", threads::getThreadCount);
+        metrics.gauge("screenshow_jvm_threads_peak", "Most platform threads alive at once.", threads::getPeakThreadCount);
+        metrics.gauge("screenshow_process_resident_bytes", "Resident memory of the process, 0 where unknown.",
+                SharedServices::residentBytes);
+    }
+
+    /**
+     * Whether virtual threads were asked for and the running JDK has them.
+     */
+    static boolean useVirtualThreads(ScreenshowConfig config) {
+        if (config.isVirtualThreads() && !VirtualThreads.isAvailable()) {
+            logger.warn("Virtual threads need a newer JDK than " + System.getProperty("java.version")
+                    + ", using platform threads.");
+        }
+        return config.isVirtualThreads() && VirtualThreads.isAvailable();
+    }
+
+    /**
+     * A fixed pool of platform threads, or a virtual thread per task with the same limit on tasks
+     * running at once.
+     */
+    private static ExecutorService pool(boolean virtual, String prefix, int size) {
+        if (virtual) {
+            return new BoundedExecutor(VirtualThreads.newThreadPerTaskExecutor(prefix), size);
+        }
+        return Executors.newFixedThreadPool(Math.max(1, size), namedThreads(prefix));
+    }
+
+    /**
+     * Resident set size from {@code /proc/self/status}, so only known on Linux.
+     */
+    static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return 1024 * Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Unable to read the resident set size.", e);
+        }
+        return 0;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    ExecutorService getDownloadPool() {
+        return downloadPool;
+    }
+
+    ExecutorService getListingPool() {
+        return listingPool;
+    }
+
+    ExecutorService getSyncPool() {
+        return syncPool;
+    }
+
+    ExecutorService getRenditionPool() {
+        return renditionPool;
+    }
+
+    /**
+     * Short timed jobs that never block: scheduled syncs and catalog refresh debouncing.
+     */
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    DriveRetry getDriveRetry() {
+        return driveRetry;
+    }
+
+    ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    synchronized void shutdown() {
+        syncPool.shutdownNow();
+        downloadPool.shutdownNow();
+        listingPool.shutdownNow();
+        renditionPool.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.google.api.services.drive.Drive;
+
+import java.io.IOException;
+
+/**
+ * Everything one show owns: its manifest, renditions and catalog over its own download folder. The
+ * threads doing the work come from {@link SharedServices}.
+ */
+class Show {
+    private final ScreenshowConfig config;
+    private final SyncManifest manifest;
+    private final RenditionPipeline renditions;
+    private final Catalog catalog;
+    private final DiskBudget budget;
+
+    Show(ScreenshowConfig config, SharedServices shared) throws IOException {
+        this.config = config;
+        this.manifest = SyncManifest.load(GoogleDriveSync.stateFolder(config));
+        this.budget = new DiskBudget(config, manifest, shared.getMetrics());
+        this.renditions = new RenditionPipeline(config, shared.getRenditionPool());
+        this.catalog = new Catalog(config, manifest, renditions, shared.getTimer());
+        renditions.setOnRendered(catalog::invalidate);
+        catalog.startWatching();
+    }
+
+    String getName() {
+        return config.getShowName();
+    }
+
+    ScreenshowConfig getConfig() {
+        return config;
+    }
+
+    Catalog getCatalog() {
+        return catalog;
+    }
+
+    RenditionPipeline getRenditions() {
+        return renditions;
+    }
+
+    DiskBudget getBudget() {
+        return budget;
+    }
+
+    GoogleDriveSync startSync(Drive drive, SharedServices shared) {
+        return new GoogleDriveSync(config, drive, manifest, catalog, renditions, budget, shared);
+    }
+
+    void close() {
+        budget.save();
+        catalog.close();
+        manifest.close();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+/**
+ * One named show: a Google Drive folder synced into its own download folder and served under
+ * {@code /show/<name>/}.
+ */
+public class ShowConfig {
+
+    private String name;
+    private String googleFolderId;
+    private String downloadFolder;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getGoogleFolderId() {
+        return googleFolderId;
+    }
+
+    public void setGoogleFolderId(String googleFolderId) {
+        this.googleFolderId = googleFolderId;
+    }
+
+    public String getDownloadFolder() {
+        return downloadFolder;
+    }
+
+    public void setDownloadFolder(String downloadFolder) {
+        this.downloadFolder = downloadFolder;
+    }
+}
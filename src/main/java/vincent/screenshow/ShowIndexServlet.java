@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.github.jknack.handlebars.Context;
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Template;
+import com.github.jknack.handlebars.context.JavaBeanValueResolver;
+import com.github.jknack.handlebars.io.ClassPathTemplateLoader;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+
+/**
+ * Lists the configured shows at {@code /} when no default show is served there, and keeps
+ * {@code /metrics} at its usual place.
+ */
+public class ShowIndexServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private final Metrics metrics;
+    private final String page;
+
+    ShowIndexServlet(List<ShowConfig> shows, Metrics metrics) {
+        this.metrics = metrics;
+        try {
+            Template template = new Handlebars(new ClassPathTemplateLoader("/templates", ".hbs")).compile("shows");
+            this.page = template.apply(Context.newBuilder(shows).resolver(JavaBeanValueResolver.INSTANCE).build());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String uri = request.getRequestURI();
+        if (uri.equals("/")) {
+            response.setStatus(SC_OK);
+            response.setContentType("text/html;charset=UTF-8");
+            response.getWriter().write(page);
+        } else if (uri.equals("/metrics")) {
+            response.setStatus(SC_OK);
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            response.setHeader("Cache-Control", "no-cache");
+            response.getWriter().write(metrics.write());
+        } else {
+            response.setStatus(SC_NOT_FOUND);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Streams sync progress to browsers as server-sent events. Subscribers are parked as async requests,
+ * so they hold no Jetty thread, and one thread per show writes the same event to all of them once a
+ * second while a sync is running; it is not the shared timer because a write blocks while a browser is
+ * not reading. When the catalog changes the difference to the previous playlist goes out as a
+ * {@code playlist} event, so players update without reloading.
+ */
+class SyncEvents {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final byte[] KEEP_ALIVE = ": keep-alive\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final int KEEP_ALIVE_TICKS = 15;
+
+    private final Supplier<SyncRun> currentRun;
+    private final Supplier<Playlist> playlists;
+    private final Set<AsyncContext> subscribers = new CopyOnWriteArraySet<>();
+    private final ScheduledExecutorService timer;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private long lastRunId = -1;
+    private String lastState;
+    private long lastBytes;
+    private long lastTick;
+    private int idleTicks;
+    private Playlist lastPlaylist;
+
+    SyncEvents(String showName, Supplier<SyncRun> currentRun, Supplier<Playlist> playlists) {
+        this.currentRun = currentRun;
+        this.playlists = playlists;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                SharedServices.namedThreads("screenshow-sync-events-" + showName));
+        this.timer.scheduleWithFixedDelay(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    void subscribe(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                subscribers.remove(async);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                subscribers.remove(async);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                subscribers.remove(async);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        // The first event carries the state of the last run so a new page knows where things stand.
+        SyncRun run = currentRun.get();
+        byte[] first = null == run ? KEEP_ALIVE : event(run, 0);
+        response.getOutputStream().write(first);
+        response.flushBuffer();
+        subscribers.add(async);
+    }
+
+    private void tick() {
+        try {
+            SyncRun run = currentRun.get();
+            long now = System.currentTimeMillis();
+            byte[] payload = null;
+            if (null != run && (run.getId() != lastRunId || !run.getState().equals(lastState)
+                    || SyncRun.RUNNING.equals(lastState))) {
+                boolean sameRun = run.getId() == lastRunId;
+                long bytes = run.getBytesDone();
+                long elapsed = now - lastTick;
+                long throughput = sameRun && elapsed > 0 ? Math.max(0, (bytes - lastBytes) * 1000 / elapsed) : 0;
+                payload = event(run, throughput);
+                lastRunId = run.getId();
+                lastState = run.getState();
+                lastBytes = bytes;
+                idleTicks = 0;
+            } else if (++idleTicks >= KEEP_ALIVE_TICKS) {
+                // Idle connections still need traffic now and then to notice browsers that went away.
+                payload = KEEP_ALIVE;
+                idleTicks = 0;
+            }
+            lastTick = now;
+            if (null != payload) {
+                broadcast(payload);
+            }
+            Playlist playlist = playlists.get();
+            if (null != lastPlaylist && playlist.getVersion() != lastPlaylist.getVersion()) {
+                broadcast(("event: playlist\ndata: " + playlist.diffJson(lastPlaylist) + "\n\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                idleTicks = 0;
+            }
+            lastPlaylist = playlist;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to publish sync progress.", e);
+        }
+    }
+
+    private void broadcast(byte[] payload) {
+        for (AsyncContext async : subscribers) {
+            try {
+                async.getResponse().getOutputStream().write(payload);
+                async.getResponse().flushBuffer();
+            } catch (IOException | IllegalStateException e) {
+                subscribers.remove(async);
+                try {
+                    async.complete();
+                } catch (IllegalStateException ignored) {
+                    // Already completed by the container.
+                }
+            }
+        }
+    }
+
+    private byte[] event(SyncRun run, long throughput) {
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeNumberField("syncId", run.getId());
+            generator.writeStringField("state", run.getState());
+            generator.writeStringField("currentFile", run.getCurrentFile());
+            generator.writeNumberField("bytesDone", run.getBytesDone());
+            generator.writeNumberField("bytesTotal", run.getBytesTotal());
+            generator.writeNumberField("filesDone", run.getFilesDone());
+            generator.writeNumberField("filesFailed", run.getFilesFailed());
+            generator.writeNumberField("filesRemaining", run.getFilesRemaining());
+            generator.writeNumberField("bytesPerSecond", throughput);
+            generator.writeNumberField("elapsedMillis", System.currentTimeMillis() - run.getStarted());
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ("event: sync\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    void close() {
+        timer.shutdownNow();
+        for (AsyncContext async : subscribers) {
+            try {
+                async.complete();
+            } catch (IllegalStateException ignored) {
+                // Already completed by the container.
+            }
+        }
+        subscribers.clear();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * What has been downloaded from Drive, keyed by Drive file id. The manifest is kept as a snapshot
+ * ({@code manifest.json}) plus an append-only journal ({@code manifest.log}) with one line per change,
+ * so every download is recorded with a single small write and a torn last line is simply ignored on
+ * load. {@link #compact()} folds the journal back into the snapshot.
+ */
+class SyncManifest {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, String> owners = new HashMap<>();
+    private final Map<String, String> claims = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private long storedBytes;
+    private final boolean created;
+    private Writer journal;
+
+    private SyncManifest(File stateFolder) {
+        this.snapshotFile = new File(stateFolder, "manifest.json");
+        this.journalFile = new File(stateFolder, "manifest.log");
+        this.created = !snapshotFile.isFile() && !journalFile.isFile();
+    }
+
+    static SyncManifest load(File stateFolder) throws IOException {
+        Files.createDirectories(stateFolder.toPath());
+        SyncManifest manifest = new SyncManifest(stateFolder);
+        manifest.read();
+        manifest.compact();
+        return manifest;
+    }
+
+    private void read() {
+        if (snapshotFile.isFile()) {
+            try {
+                Map<String, Entry> snapshot = MAPPER.readValue(snapshotFile, new TypeReference<Map<String, Entry>>() {
+                });
+                snapshot.values().forEach(this::index);
+            } catch (IOException e) {
+                logger.warn("Unable to read sync manifest " + snapshotFile.getAbsolutePath() + ", starting over.", e);
+            }
+        }
+        if (journalFile.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while (null != (line = reader.readLine())) {
+                    replay(line);
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to read sync journal " + journalFile.getAbsolutePath() + ".", e);
+            }
+        }
+    }
+
+    private void replay(String line) {
+        try {
+            JournalLine record = MAPPER.readValue(line, JournalLine.class);
+            if (null == record.getEntry()) {
+                unindex(record.getId());
+            } else {
+                index(record.getEntry());
+            }
+        } catch (IOException e) {
+            logger.warn("Ignoring incomplete sync journal line: " + line);
+        }
+    }
+
+    /**
+     * True when no manifest existed on disk, i.e. the download folder predates the manifest.
+     */
+    boolean isCreated() {
+        return created;
+    }
+
+    synchronized Entry get(String fileId) {
+        return entries.get(fileId);
+    }
+
+    synchronized Entry findByLocalPath(String localPath) {
+        String fileId = owners.get(localPath);
+        return null == fileId ? null : entries.get(fileId);
+    }
+
+    synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    synchronized Set<String> fileIds() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    synchronized boolean isReferenced(String localPath) {
+        return owners.containsKey(localPath);
+    }
+
+    /**
+     * Number of entries whose content has the given checksum and is on disk.
+     */
+    synchronized int references(String md5Checksum) {
+        return references.getOrDefault(md5Checksum, 0);
+    }
+
+    /**
+     * Bytes of original content on disk, counting content shared by several entries once.
+     */
+    synchronized long storedBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Entries whose original was evicted to stay within the download budget.
+     */
+    synchronized List<Entry> evictedEntries() {
+        List<Entry> evicted = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isEvicted()) {
+                evicted.add(entry);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Reserves a local file name for a Drive file. Two Drive files whose names map to the same safe
+     * name get distinct local names by suffixing the later one with its id. The name only becomes the
+     * file's own once it is {@link #put}; until then the claim just keeps it from other files of the
+     * same batch, see {@link #releaseClaims()}.
+     */
+    synchronized String claimName(String fileId, String safeFileName) {
+        String owner = owners.getOrDefault(safeFileName, claims.get(safeFileName));
+        if (null == owner || owner.equals(fileId)) {
+            claims.put(safeFileName, fileId);
+            return safeFileName;
+        }
+        int dot = safeFileName.lastIndexOf('.');
+        String suffix = "_" + fileId.toLowerCase().replaceAll("[^a-z0-9]", "");
+        String unique = dot > 0
+                ? safeFileName.substring(0, dot) + suffix + safeFileName.substring(dot)
+                : safeFileName + suffix;
+        claims.put(unique, fileId);
+        return unique;
+    }
+
+    /**
+     * Drops the names claimed by files that were not put, once nothing of the batch is in flight.
+     */
+    synchronized void releaseClaims() {
+        claims.clear();
+    }
+
+    synchronized void put(Entry entry) throws IOException {
+        Entry previous = index(entry);
+        if (null != previous && !previous.getLocalPath().equals(entry.getLocalPath())) {
+            owners.remove(previous.getLocalPath(), entry.getId());
+        }
+        claims.values().removeIf(entry.getId()::equals);
+        append(new JournalLine(entry.getId(), entry));
+    }
+
+    synchronized Entry remove(String fileId) throws IOException {
+        Entry removed = unindex(fileId);
+        if (null != removed) {
+            append(new JournalLine(fileId, null));
+        }
+        return removed;
+    }
+
+    /**
+     * Rewrites the snapshot from memory and truncates the journal.
+     */
+    synchronized void compact() throws IOException {
+        closeJournal();
+        Path target = snapshotFile.toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        MAPPER.writeValue(temp.toFile(), new TreeMap<>(entries));
+        Files.move(temp, target, REPLACE_EXISTING, ATOMIC_MOVE);
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    synchronized void close() {
+        try {
+            closeJournal();
+        } catch (IOException e) {
+            logger.warn("Trouble closing sync journal.", e);
+        }
+    }
+
+    private Entry index(Entry entry) {
+        owners.put(entry.getLocalPath(), entry.getId());
+        Entry previous = entries.put(entry.getId(), entry);
+        if (null != previous) {
+            dereference(previous);
+        }
+        reference(entry);
+        return previous;
+    }
+
+    private Entry unindex(String fileId) {
+        Entry removed = entries.remove(fileId);
+        owners.values().removeIf(fileId::equals);
+        if (null != removed) {
+            dereference(removed);
+        }
+        return removed;
+    }
+
+    private void reference(Entry entry) {
+        if (entry.isEvicted()) {
+            return;
+        }
+        if (null == entry.getMd5Checksum() || references.merge(entry.getMd5Checksum(), 1, Integer::sum) == 1) {
+            storedBytes += entry.sizeOrZero();
+        }
+    }
+
+    private void dereference(Entry entry) {
+        if (entry.isEvicted()) {
+            return;
+        }
+        String md5Checksum = entry.getMd5Checksum();
+        if (null == md5Checksum || null == references.computeIfPresent(md5Checksum,
+                (checksum, count) -> count > 1 ? count - 1 : null)) {
+            storedBytes -= entry.sizeOrZero();
+        }
+    }
+
+    private void append(JournalLine line) throws IOException {
+        if (null == journal) {
+            journal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+        }
+        journal.write(MAPPER.writeValueAsString(line));
+        journal.write('\n');
+        journal.flush();
+    }
+
+    private void closeJournal() throws IOException {
+        if (null != journal) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Entry {
+        private String id;
+        private String md5Checksum;
+        private Long size;
+        private long modifiedTime;
+        private String localPath;
+        private boolean evicted;
+
+        public Entry() {
+        }
+
+        Entry(String id, String md5Checksum, Long size, long modifiedTime, String localPath) {
+            this.id = id;
+            this.md5Checksum = md5Checksum;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.localPath = localPath;
+        }
+
+        private Entry(Entry entry, String localPath, boolean evicted) {
+            this(entry.id, entry.md5Checksum, entry.size, entry.modifiedTime, localPath);
+            this.evicted = evicted;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getMd5Checksum() {
+            return md5Checksum;
+        }
+
+        public void setMd5Checksum(String md5Checksum) {
+            this.md5Checksum = md5Checksum;
+        }
+
+        public Long getSize() {
+            return size;
+        }
+
+        public void setSize(Long size) {
+            this.size = size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        public void setModifiedTime(long modifiedTime) {
+            this.modifiedTime = modifiedTime;
+        }
+
+        public String getLocalPath() {
+            return localPath;
+        }
+
+        public void setLocalPath(String localPath) {
+            this.localPath = localPath;
+        }
+
+        /**
+         * True when the original was deleted to stay within the download budget, the entry is kept
+         * so its renditions stay in the catalog.
+         */
+        @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+        public boolean isEvicted() {
+            return evicted;
+        }
+
+        public void setEvicted(boolean evicted) {
+            this.evicted = evicted;
+        }
+
+        long sizeOrZero() {
+            return null == size ? 0 : size;
+        }
+
+        Entry withLocalPath(String localPath) {
+            return new Entry(this, localPath, evicted);
+        }
+
+        Entry asEvicted() {
+            return new Entry(this, localPath, true);
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class JournalLine {
+        private String id;
+        private Entry entry;
+
+        public JournalLine() {
+        }
+
+        JournalLine(String id, Entry entry) {
+            this.id = id;
+            this.entry = entry;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        public void setEntry(Entry entry) {
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One sync of the google folder, shared by everybody who asked for a sync while it was running. The
+ * counters are updated by the download threads and read by the progress stream.
+ */
+class SyncRun {
+    static final String RUNNING = "running";
+    static final String FINISHED = "finished";
+    static final String FAILED = "failed";
+
+    private final long id;
+    private final long started = System.currentTimeMillis();
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final AtomicInteger filesQueued = new AtomicInteger();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private volatile String currentFile;
+    private volatile String state = RUNNING;
+    private volatile boolean changed;
+
+    SyncRun(long id) {
+        this.id = id;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    long getStarted() {
+        return started;
+    }
+
+    String getState() {
+        return state;
+    }
+
+    String getCurrentFile() {
+        return currentFile;
+    }
+
+    int getFilesQueued() {
+        return filesQueued.get();
+    }
+
+    int getFilesDone() {
+        return filesDone.get();
+    }
+
+    int getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    int getFilesRemaining() {
+        return Math.max(0, filesQueued.get() - filesDone.get() - filesFailed.get());
+    }
+
+    long getBytesTotal() {
+        return bytesTotal.get();
+    }
+
+    long getBytesDone() {
+        return bytesDone.get();
+    }
+
+    /**
+     * Whether the sync changed the set of files on show.
+     */
+    boolean isChanged() {
+        return changed;
+    }
+
+    void changed() {
+        changed = true;
+    }
+
+    boolean isDone() {
+        return completion.isDone();
+    }
+
+    void fileQueued(Long size) {
+        filesQueued.incrementAndGet();
+        if (null != size) {
+            bytesTotal.addAndGet(size);
+        }
+    }
+
+    void fileStarted(String fileName) {
+        currentFile = fileName;
+    }
+
+    void bytesTransferred(long count) {
+        bytesDone.addAndGet(count);
+    }
+
+    void fileDone() {
+        filesDone.incrementAndGet();
+    }
+
+    void fileFailed() {
+        filesFailed.incrementAndGet();
+    }
+
+    void finished(Throwable error) {
+        state = null == error ? FINISHED : FAILED;
+        currentFile = null;
+        if (null == error) {
+            completion.complete(null);
+        } else {
+            completion.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Waits for the run to end, rethrowing the failure of the sync.
+     */
+    void await() throws IOException {
+        try {
+            completion.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Sync failed.", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Sync bookkeeping persisted between runs: the Drive changes page token, the files a sync left
+ * unfinished and the files that keep failing to download.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class SyncState {
+    private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private String changesToken;
+    private Map<String, DownloadFailure> failures = new TreeMap<>();
+    private Set<String> pending = new TreeSet<>();
+    @JsonIgnore
+    private File stateFile;
+
+    static SyncState load(File stateFile) {
+        SyncState state = new SyncState();
+        if (stateFile.isFile()) {
+            try {
+                state = MAPPER.readValue(stateFile, SyncState.class);
+            } catch (IOException e) {
+                logger.warn("Unable to read sync state " + stateFile.getAbsolutePath() + ", starting over.", e);
+            }
+        }
+        state.stateFile = stateFile;
+        return state;
+    }
+
+    /**
+     * Writes the state to a temporary file and moves it over the previous one so a crash never
+     * leaves a half written state behind.
+     */
+    synchronized void save() throws IOException {
+        Path target = stateFile.toPath();
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        MAPPER.writeValue(temp.toFile(), this);
+        Files.move(temp, target, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    public synchronized String getChangesToken() {
+        return changesToken;
+    }
+
+    public synchronized void setChangesToken(String changesToken) {
+        this.changesToken = changesToken;
+    }
+
+    /**
+     * Failures by Drive file id.
+     */
+    public synchronized Map<String, DownloadFailure> getFailures() {
+        return new TreeMap<>(failures);
+    }
+
+    public synchronized void setFailures(Map<String, DownloadFailure> failures) {
+        this.failures = new TreeMap<>(failures);
+    }
+
+    /**
+     * Drive ids of files that are not on disk as they are on Drive although the changes token moved past
+     * them: failed downloads and files skipped or evicted for the download budget.
+     */
+    public synchronized Set<String> getPending() {
+        return new TreeSet<>(pending);
+    }
+
+    public synchronized void setPending(Set<String> pending) {
+        this.pending = new TreeSet<>(pending);
+    }
+
+    synchronized void addPending(String fileId) {
+        pending.add(fileId);
+    }
+
+    synchronized void removePending(String fileId) {
+        pending.remove(fileId);
+    }
+
+    synchronized void retainPending(Set<String> fileIds) {
+        pending.retainAll(fileIds);
+    }
+
+    synchronized DownloadFailure getFailure(String fileId) {
+        return failures.get(fileId);
+    }
+
+    /**
+     * Counts a failed attempt at a version of a file, starting over when the version changed.
+     */
+    synchronized DownloadFailure recordFailure(String fileId, String fileName, String version, String error) {
+        DownloadFailure failure = failures.get(fileId);
+        if (null == failure || !version.equals(failure.getVersion())) {
+            failure = new DownloadFailure();
+            failure.setVersion(version);
+            failures.put(fileId, failure);
+        }
+        failure.setFileName(fileName);
+        failure.setFailures(failure.getFailures() + 1);
+        failure.setLastError(error);
+        failure.setLastFailure(System.currentTimeMillis());
+        return failure;
+    }
+
+    synchronized boolean clearFailure(String fileId) {
+        return null != failures.remove(fileId);
+    }
+
+    synchronized boolean retainFailures(Set<String> fileIds) {
+        return failures.keySet().retainAll(fileIds);
+    }
+}
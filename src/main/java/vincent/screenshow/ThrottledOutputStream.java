@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Writes through a {@link RateLimiter}, in slices small enough that one big buffer cannot use up the
+ * whole bucket at once.
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+    private static final int SLICE = 64 * 1024;
+
+    private final RateLimiter limiter;
+
+    ThrottledOutputStream(OutputStream out, RateLimiter limiter) {
+        super(out);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int slice = Math.min(SLICE, len);
+            try {
+                limiter.acquire(slice);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling download.");
+            }
+            out.write(b, off, slice);
+            limiter.record(slice);
+            off += slice;
+            len -= slice;
+        }
+    }
+}
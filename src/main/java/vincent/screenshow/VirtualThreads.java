@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 Jason Vincent https://github.com/vincen8147/screenshow
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package vincent.screenshow;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads when the JDK running us has them. The build targets an older release, so the
+ * {@code Thread.ofVirtual()} api is looked up reflectively and everything falls back to platform
+ * threads where it is missing.
+ */
+final class VirtualThreads {
+    private static final Method OF_VIRTUAL = find(Thread.class, "ofVirtual");
+    private static final Method THREAD_PER_TASK = find(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private VirtualThreads() {
+    }
+
+    static boolean isAvailable() {
+        return null != OF_VIRTUAL && null != THREAD_PER_TASK;
+    }
+
+    /**
+     * Starts a new virtual thread for every task, named {@code <prefix>-<n>}.
+     */
+    static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) THREAD_PER_TASK.invoke(null, factory);
+        } catch (ReflectiveOperationException | NullPointerException e) {
+            throw new IllegalStateException("Virtual threads are not available.", e);
+        }
+    }
+
+    private static Method find(Class<?> type, String name, Class<?>... parameters) {
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}